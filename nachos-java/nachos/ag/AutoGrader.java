@@ -102,6 +102,20 @@ public class AutoGrader {
 	}
     }
 
+    String getStringArgument(String key, String defaultValue) {
+	if (testArgs.get(key) == null)
+	    return defaultValue;
+
+	return getStringArgument(key);
+    }
+
+    int getIntegerArgument(String key, int defaultValue) {
+	if (testArgs.get(key) == null)
+	    return defaultValue;
+
+	return getIntegerArgument(key);
+    }
+
     boolean getBooleanArgument(String key) {
 	String value = getStringArgument(key);
 
@@ -148,8 +162,25 @@ public class AutoGrader {
     void init() {
     }
     
+    /**
+     * Test the kernel. By default, run its self test, unless
+     * <tt>AutoGrader.loadSnapshot</tt> names a machine snapshot to load in its
+     * place, and then run it. If <tt>AutoGrader.saveSnapshot</tt> names a
+     * file, a snapshot of the machine is saved there before the kernel is
+     * run. See <tt>MachineSnapshot</tt>.
+     */
     void run() {
-		kernel.selfTest();
+		String loadSnapshot = Config.getString("AutoGrader.loadSnapshot");
+		String saveSnapshot = Config.getString("AutoGrader.saveSnapshot");
+
+		if (loadSnapshot != null)
+			MachineSnapshot.load(privilege, loadSnapshot);
+		else
+			kernel.selfTest();
+
+		if (saveSnapshot != null)
+			MachineSnapshot.save(privilege, saveSnapshot);
+
 		kernel.run();
 		kernel.terminate();
     }
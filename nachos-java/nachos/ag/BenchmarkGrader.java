@@ -0,0 +1,74 @@
+package nachos.ag;
+
+import nachos.bench.*;
+import nachos.machine.*;
+
+import java.util.StringTokenizer;
+
+/**
+ * An autograder that, instead of testing the kernel, benchmarks its
+ * synchronization primitives. The kernel is initialized as usual, and then
+ * each selected benchmark is run in the main thread and its results printed.
+ *
+ * <p>
+ * The following <tt>-#</tt> arguments are understood:
+ * <ul>
+ * <li><tt>bench</tt>: the benchmarks to run, separated by colons. A name
+ * selects every benchmark whose name starts with it, so <tt>lock</tt>
+ * selects <tt>lock.contended</tt>. Defaults to <tt>all</tt>.
+ * <li><tt>warmup</tt>: the number of untimed iterations. Defaults to 5.
+ * <li><tt>iterations</tt>: the number of timed iterations. Defaults to 10.
+ * <li><tt>ops</tt>: the number of operations per iteration. Defaults to a
+ * number chosen for each benchmark.
+ * <li><tt>threads</tt>: the number of threads used by the benchmarks that
+ * take one. Defaults to 4.
+ * </ul>
+ *
+ * <p>
+ * For example, from the <tt>projbench</tt> directory:
+ * <pre>
+ * java nachos.machine.Machine -- nachos.ag.BenchmarkGrader -# bench=lock:alarm,threads=16
+ * </pre>
+ */
+public class BenchmarkGrader extends AutoGrader {
+    void run() {
+	String selection = getStringArgument("bench", "all");
+	int warmup = getIntegerArgument("warmup", 5);
+	int iterations = getIntegerArgument("iterations", 10);
+	int operations = getIntegerArgument("ops", 0);
+	int threads = getIntegerArgument("threads", 4);
+
+	Benchmark[] benchmarks = {
+	    new SemaphoreBench(),
+	    new LockBench(threads),
+	    new Condition2Bench(),
+	    new SynchListBench(),
+	    new YieldBench(),
+	    new AlarmBench(threads),
+	};
+
+	Benchmark.printHeader();
+
+	for (int i=0; i<benchmarks.length; i++) {
+	    if (!isSelected(benchmarks[i].getName(), selection))
+		continue;
+
+	    benchmarks[i].measure(warmup, iterations, (operations > 0) ?
+				  operations :
+				  benchmarks[i].getDefaultOperations());
+	}
+
+	kernel.terminate();
+    }
+
+    private static boolean isSelected(String name, String selection) {
+	StringTokenizer st = new StringTokenizer(selection, ":");
+	while (st.hasMoreTokens()) {
+	    String prefix = st.nextToken();
+	    if (prefix.equals("all") || name.startsWith(prefix))
+		return true;
+	}
+
+	return false;
+    }
+}
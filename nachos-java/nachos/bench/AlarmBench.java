@@ -0,0 +1,51 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures <tt>Alarm.waitUntil()</tt> with many sleepers. Each thread sleeps
+ * over and over for different lengths of time, up to two timer periods, so
+ * that at any moment most of them are waiting on the alarm. Each operation is
+ * one call to <tt>waitUntil()</tt>. The time spent is mostly simulated time
+ * going by, so the ticks per operation, and the wall-clock cost of each of
+ * those ticks, matter as much as the nanoseconds per operation.
+ */
+public class AlarmBench extends Benchmark {
+    /**
+     * Allocate a new alarm benchmark.
+     *
+     * @param	numThreads	the number of sleeping threads.
+     */
+    public AlarmBench(int numThreads) {
+	super("alarm.waituntil", numThreads, 1000);
+
+	Lib.assertTrue(numThreads > 0);
+	this.numThreads = numThreads;
+    }
+
+    protected void run(int operations) {
+	final Semaphore done = new Semaphore(0);
+	final int perThread = Lib.divRoundUp(operations, numThreads);
+
+	for (int i=0; i<numThreads; i++) {
+	    final int which = i;
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<perThread; j++) {
+			    long delay = 1 + (which*7919 + j*104729) %
+				(2*Stats.TimerTicks);
+			    ThreadedKernel.alarm.waitUntil(delay);
+			}
+			done.V();
+		    }
+		}).setName("sleeper " + i).fork();
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    done.P();
+    }
+
+    private int numThreads;
+}
@@ -0,0 +1,124 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+/**
+ * A benchmark of a kernel primitive, run inside a booted Nachos machine.
+ *
+ * <p>
+ * A benchmark is run in iterations. Each iteration performs some number of
+ * operations by calling <tt>run()</tt>, which usually forks a few threads,
+ * has them exercise the primitive being measured, and waits for them to
+ * finish. The first few iterations are only warmup, to let the JIT compile
+ * the code paths involved; the rest are timed both in wall-clock nanoseconds
+ * and in simulated ticks, and reported per operation.
+ *
+ * <p>
+ * Benchmarks are run by <tt>nachos.ag.BenchmarkGrader</tt>. See the
+ * <tt>projbench</tt> directory.
+ */
+public abstract class Benchmark {
+    /**
+     * Allocate a new benchmark.
+     *
+     * @param	name		the name of this benchmark.
+     * @param	numThreads	the number of threads each iteration uses.
+     * @param	defaultOperations	the number of operations per
+     *					iteration, unless the grader is told
+     *					otherwise.
+     */
+    protected Benchmark(String name, int numThreads, int defaultOperations) {
+	this.name = name;
+	this.numThreads = numThreads;
+	this.defaultOperations = defaultOperations;
+    }
+
+    /**
+     * Return the name of this benchmark.
+     *
+     * @return	the name of this benchmark.
+     */
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Return the number of operations each iteration performs by default.
+     *
+     * @return	the default number of operations per iteration.
+     */
+    public int getDefaultOperations() {
+	return defaultOperations;
+    }
+
+    /**
+     * Perform one iteration of this benchmark. Called in a Nachos thread with
+     * interrupts enabled, and must return only once all the threads it forks
+     * are done with their work.
+     *
+     * @param	operations	the number of operations to perform.
+     */
+    protected abstract void run(int operations);
+
+    /**
+     * Run the warmup iterations, then time the measurement iterations and
+     * print a line of results.
+     *
+     * @param	warmupIterations	the number of untimed iterations.
+     * @param	measureIterations	the number of timed iterations.
+     * @param	operations		the number of operations per
+     *					iteration.
+     */
+    public void measure(int warmupIterations, int measureIterations,
+			int operations) {
+	Lib.assertTrue(measureIterations > 0 && operations > 0);
+
+	for (int i=0; i<warmupIterations; i++)
+	    run(operations);
+
+	double sum = 0, sumOfSquares = 0, best = Double.MAX_VALUE;
+	long ticks = 0;
+
+	for (int i=0; i<measureIterations; i++) {
+	    long startTicks = Machine.timer().getTime();
+	    long startNanos = System.nanoTime();
+
+	    run(operations);
+
+	    double nanosPerOp =
+		(double) (System.nanoTime() - startNanos) / operations;
+	    ticks += Machine.timer().getTime() - startTicks;
+
+	    sum += nanosPerOp;
+	    sumOfSquares += nanosPerOp * nanosPerOp;
+	    best = Math.min(best, nanosPerOp);
+	}
+
+	double mean = sum / measureIterations;
+	double deviation =
+	    Math.sqrt(Math.max(0, sumOfSquares/measureIterations - mean*mean));
+	double ticksPerOp = (double) ticks / measureIterations / operations;
+
+	System.out.println(String.format(lineFormat, name, numThreads,
+					 operations, mean, deviation, best,
+					 ticksPerOp));
+    }
+
+    /**
+     * Print the header for the lines printed by <tt>measure()</tt>.
+     */
+    public static void printHeader() {
+	System.out.println(String.format(headerFormat, "benchmark", "threads",
+					 "ops/iter", "ns/op", "+/-",
+					 "best ns/op", "ticks/op"));
+    }
+
+    private String name;
+    private int numThreads;
+    private int defaultOperations;
+
+    private static final String headerFormat =
+	"%-22s %7s %9s %10s %9s %10s %9s";
+    private static final String lineFormat =
+	"%-22s %7d %9d %10.1f %9.1f %10.1f %9.1f";
+}
@@ -0,0 +1,61 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures <tt>Condition2.sleep()</tt> and <tt>wake()</tt>. Two threads take
+ * turns under one lock, each sleeping on the condition variable until it is
+ * its turn, and waking the other when it hands the turn over. Each operation
+ * is one turn of each thread.
+ */
+public class Condition2Bench extends Benchmark {
+    /**
+     * Allocate a new condition variable ping-pong benchmark.
+     */
+    public Condition2Bench() {
+	super("condition2.pingpong", 2, 10000);
+    }
+
+    protected void run(int operations) {
+	lock = new Lock();
+	condition = new Condition2(lock);
+	done = new Semaphore(0);
+	turn = 0;
+
+	new KThread(new Player(0, operations)).setName("player 0").fork();
+	new KThread(new Player(1, operations)).setName("player 1").fork();
+
+	done.P();
+	done.P();
+    }
+
+    private class Player implements Runnable {
+	Player(int which, int turns) {
+	    this.which = which;
+	    this.turns = turns;
+	}
+
+	public void run() {
+	    lock.acquire();
+	    for (int i=0; i<turns; i++) {
+		while (turn != which)
+		    condition.sleep();
+
+		turn = 1 - which;
+		condition.wake();
+	    }
+	    lock.release();
+
+	    done.V();
+	}
+
+	private int which;
+	private int turns;
+    }
+
+    private Lock lock;
+    private Condition2 condition;
+    private Semaphore done;
+    private int turn;
+}
@@ -0,0 +1,191 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Compares <tt>PendingInterruptQueue</tt> with the <tt>TreeSet</tt> that
+ * <tt>Interrupt</tt> used to keep its pending interrupts in.
+ *
+ * <p>
+ * Each benchmark keeps a fixed number of interrupts pending, and repeatedly
+ * removes the earliest one and schedules a replacement a little later, the
+ * way devices reschedule themselves from their interrupt handlers. Delays are
+ * drawn from the usual device periods as well as at random, so that many
+ * interrupts are due at the same time and the tie-break on id is exercised.
+ * Both queues are fed the same sequence, and the order in which they fire is
+ * checked to be identical before anything is timed.
+ *
+ * <p>
+ * Run with <tt>java nachos.bench.InterruptQueueBench [<i>size</i> ...]</tt>
+ * after building in <tt>projbench</tt>, or anywhere else with <tt>bench</tt> in
+ * <tt>DIRS</tt>. No Nachos machine is needed.
+ */
+public class InterruptQueueBench {
+    /**
+     * Run the benchmark for each queue size given on the command line, or for
+     * a default range of sizes.
+     *
+     * @param	args	the numbers of pending interrupts to benchmark.
+     */
+    public static void main(String[] args) {
+	int[] sizes = { 4, 64, 1024, 16384 };
+	if (args.length > 0) {
+	    sizes = new int[args.length];
+	    for (int i=0; i<args.length; i++)
+		sizes[i] = Integer.parseInt(args[i]);
+	}
+
+	System.out.println("pending\tTreeSet ns/op\theap ns/op\tspeedup");
+
+	for (int i=0; i<sizes.length; i++) {
+	    final int size = sizes[i];
+
+	    Lib.assertTrue(runTreeSet(size) == runHeap(size),
+			   "firing order differs");
+
+	    double treeSet = measure(new Runnable() {
+		    public void run() {
+			sink += runTreeSet(size);
+		    }
+		});
+	    double heap = measure(new Runnable() {
+		    public void run() {
+			sink += runHeap(size);
+		    }
+		});
+
+	    System.out.println(size + "\t" + format(treeSet) + "\t\t" +
+			       format(heap) + "\t\t" + format(treeSet/heap) + "x");
+	}
+    }
+
+    private static String format(double value) {
+	return String.format("%.1f", value);
+    }
+
+    /**
+     * Run the specified benchmark for the warmup rounds, and then return the
+     * best time per operation over the measurement rounds.
+     */
+    private static double measure(Runnable benchmark) {
+	for (int i=0; i<warmupRounds; i++)
+	    benchmark.run();
+
+	long best = Long.MAX_VALUE;
+	for (int i=0; i<measureRounds; i++) {
+	    long start = System.nanoTime();
+	    benchmark.run();
+	    best = Math.min(best, System.nanoTime() - start);
+	}
+
+	return (double) best / operations;
+    }
+
+    private static long nextDelay(Random random) {
+	switch (random.nextInt(4)) {
+	case 0:
+	    return Stats.ConsoleTime;
+	case 1:
+	    return Stats.TimerTicks;
+	default:
+	    return 1 + random.nextInt(2*Stats.TimerTicks);
+	}
+    }
+
+    /**
+     * Keep <i>size</i> interrupts pending in a <tt>TreeSet</tt> while firing
+     * and rescheduling <tt>operations</tt> of them, and return a hash of the
+     * order in which they fired.
+     */
+    private static long runTreeSet(int size) {
+	Random random = new Random(seed);
+	TreeSet<PendingInterrupt> pending = new TreeSet<PendingInterrupt>();
+	long now = 0, id = 0, order = 0;
+
+	for (int i=0; i<size; i++)
+	    pending.add(new PendingInterrupt(now + nextDelay(random), id++,
+					     "bench", handler));
+
+	for (int i=0; i<operations; i++) {
+	    PendingInterrupt next = pending.first();
+	    pending.remove(next);
+
+	    now = next.time;
+	    order = order*31 + next.id;
+
+	    pending.add(new PendingInterrupt(now + nextDelay(random), id++,
+					     "bench", handler));
+	}
+
+	return order;
+    }
+
+    /**
+     * Run the same sequence as <tt>runTreeSet()</tt> on a
+     * <tt>PendingInterruptQueue</tt>.
+     */
+    private static long runHeap(int size) {
+	Random random = new Random(seed);
+	PendingInterruptQueue pending = new PendingInterruptQueue();
+	long now = 0, id = 0, order = 0;
+
+	for (int i=0; i<size; i++)
+	    pending.add(now + nextDelay(random), id++, "bench", handler);
+
+	for (int i=0; i<operations; i++) {
+	    now = pending.firstTime();
+	    order = order*31 + pending.firstId();
+	    pending.removeFirst();
+
+	    pending.add(now + nextDelay(random), id++, "bench", handler);
+	}
+
+	return order;
+    }
+
+    /** The pending interrupt that <tt>Interrupt</tt> used to allocate. */
+    private static class PendingInterrupt
+	implements Comparable<PendingInterrupt> {
+	PendingInterrupt(long time, long id, String type, Runnable handler) {
+	    this.time = time;
+	    this.id = id;
+	    this.type = type;
+	    this.handler = handler;
+	}
+
+	public int compareTo(PendingInterrupt toOccur) {
+	    // can't return 0 for unequal objects, so check all fields
+	    if (time < toOccur.time)
+		return -1;
+	    else if (time > toOccur.time)
+		return 1;
+	    else if (id < toOccur.id)
+		return -1;
+	    else if (id > toOccur.id)
+		return 1;
+	    else
+		return 0;
+	}
+
+	long time;
+	long id;
+	String type;
+	Runnable handler;
+    }
+
+    private static final Runnable handler = new Runnable() {
+	    public void run() {
+	    }
+	};
+
+    /** Keeps the results alive so the benchmarks are not optimized away. */
+    private static long sink = 0;
+
+    private static final int operations = 1000000;
+    private static final int warmupRounds = 5;
+    private static final int measureRounds = 10;
+    private static final long seed = 0x5eed;
+}
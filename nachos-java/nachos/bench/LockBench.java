@@ -0,0 +1,54 @@
+package nachos.bench;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Measures <tt>Lock.acquire()</tt> and <tt>release()</tt> under contention.
+ * Several threads repeatedly take the same lock, and each yields while
+ * holding it, so that the others find it taken and queue up on it. Each
+ * operation is one acquire/release pair.
+ */
+public class LockBench extends Benchmark {
+    /**
+     * Allocate a new lock contention benchmark.
+     *
+     * @param	numThreads	the number of threads contending for the lock.
+     */
+    public LockBench(int numThreads) {
+	super("lock.contended", numThreads, 10000);
+
+	Lib.assertTrue(numThreads > 0);
+	this.numThreads = numThreads;
+    }
+
+    protected void run(int operations) {
+	final Lock lock = new Lock();
+	final Semaphore done = new Semaphore(0);
+	final int perThread = Lib.divRoundUp(operations, numThreads);
+
+	counter = 0;
+
+	for (int i=0; i<numThreads; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<perThread; j++) {
+			    lock.acquire();
+			    counter++;
+			    KThread.yield();
+			    lock.release();
+			}
+			done.V();
+		    }
+		}).setName("contender " + i).fork();
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    done.P();
+
+	Lib.assertTrue(counter == perThread*numThreads);
+    }
+
+    private int numThreads;
+    private int counter;
+}
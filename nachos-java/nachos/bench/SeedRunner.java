@@ -0,0 +1,309 @@
+package nachos.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Runs Nachos once for each random seed in a range, several runs at a time,
+ * and keeps the output of each run in its own file.
+ *
+ * <p>
+ * All the runs share this JVM, and run on a fork-join pool. The state of the
+ * machine is static, so each run loads a fresh copy of the <tt>nachos</tt>
+ * classes through its own class loader, and is started with
+ * <tt>Machine.runHosted()</tt>, which returns the exit status instead of
+ * exiting the JVM. While the runs are going, <tt>System.out</tt> and
+ * <tt>System.err</tt> send the output of each run's threads to that run's
+ * file, and <tt>System.in</tt> is empty.
+ *
+ * <p>
+ * What this saves over starting a JVM for each run is the startup of the JVM
+ * and its own classes. It does not share compiled code: each run's copy of
+ * Nachos is compiled afresh, as it would be in a new JVM. Hosted runs are
+ * not protected by the Nachos security manager, since it would be shared by
+ * every run, so only run trusted kernels and autograders this way. The
+ * <tt>-h</tt> and <tt>-z</tt> switches, and the network devices, still exit
+ * or use the JVM as a whole, and must not be used.
+ *
+ * <p>
+ * Since <tt>System.in</tt> is empty, and the console cannot tell an empty
+ * input from one that has not been typed yet, a kernel that reads the
+ * console waits forever. The self test of <tt>UserKernel</tt>, and so of the
+ * proj2 and proj3 kernels, echoes the console until it reads <tt>q</tt>, so
+ * those projects must either be given a kernel that does not run it, or set
+ * <tt>AutoGrader.loadSnapshot</tt> to a snapshot saved in an ordinary run
+ * with <tt>AutoGrader.saveSnapshot</tt>, which skips the self test.
+ *
+ * <p>
+ * Run from a project directory, so that each run finds its
+ * <tt>nachos.conf</tt>:
+ *
+ * <pre>
+ * java nachos.bench.SeedRunner [-j <i>jobs</i>] [-o <i>dir</i>]
+ *	<i>first</i> <i>last</i> [<i>nachos args</i> ...]
+ * </pre>
+ *
+ * <p>
+ * <tt>-j</tt> sets the number of runs at a time (by default, one per
+ * processor), and <tt>-o</tt> the directory the <tt>seed-<i>n</i>.out</tt>
+ * files are written to (by default, <tt>seeds</tt>). The remaining arguments
+ * are passed to every run. The exit status of each run is printed, followed
+ * by a count of runs for each exit status.
+ */
+public class SeedRunner {
+    /**
+     * Parse the command line, run every seed, and print the results.
+     *
+     * @param	args	the command line, as described above.
+     */
+    public static void main(String[] args) {
+	int jobs = Runtime.getRuntime().availableProcessors();
+	File outputDir = new File("seeds");
+
+	int i = 0;
+	for (; i<args.length && args[i].startsWith("-"); i++) {
+	    if (args[i].equals("-j") && i+1 < args.length)
+		jobs = Integer.parseInt(args[++i]);
+	    else if (args[i].equals("-o") && i+1 < args.length)
+		outputDir = new File(args[++i]);
+	    else
+		usage();
+	}
+
+	if (args.length - i < 2 || jobs < 1)
+	    usage();
+
+	long firstSeed = Long.parseLong(args[i++]);
+	long lastSeed = Long.parseLong(args[i++]);
+
+	List<String> nachosArgs = new ArrayList<String>();
+	for (; i<args.length; i++)
+	    nachosArgs.add(args[i]);
+
+	if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+	    System.err.println("cannot create " + outputDir);
+	    System.exit(1);
+	}
+
+	final URL[] classPath = getClassPath();
+
+	PrintStream stdout = System.out;
+	PrintStream stderr = System.err;
+	System.setOut(new PrintStream(new RunOutputStream(stdout)));
+	System.setErr(new PrintStream(new RunOutputStream(stderr)));
+	System.setIn(new ByteArrayInputStream(new byte[0]));
+
+	long startTime = System.currentTimeMillis();
+
+	ForkJoinPool pool = new ForkJoinPool(jobs);
+	List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+	for (long seed=firstSeed; seed<=lastSeed; seed++) {
+	    final String[] runArgs = buildArgs(seed, nachosArgs);
+	    final File output = new File(outputDir, "seed-" + seed + ".out");
+
+	    results.add(pool.submit(new Callable<Integer>() {
+		    public Integer call() throws Exception {
+			return run(classPath, runArgs, output);
+		    }
+		}));
+	}
+
+	pool.shutdown();
+
+	TreeMap<Integer,Integer> statusCounts = new TreeMap<Integer,Integer>();
+
+	for (int j=0; j<results.size(); j++) {
+	    long seed = firstSeed + j;
+	    int status;
+
+	    try {
+		status = results.get(j).get();
+		stdout.println("seed " + seed + ": exit " + status);
+	    }
+	    catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return;
+	    }
+	    catch (ExecutionException e) {
+		status = -1;
+		stdout.println("seed " + seed + ": " + e.getCause());
+	    }
+
+	    Integer count = statusCounts.get(status);
+	    statusCounts.put(status, (count == null) ? 1 : count+1);
+	}
+
+	stdout.println(results.size() + " runs in " +
+		       (System.currentTimeMillis() - startTime) + " ms, " +
+		       jobs + " at a time");
+	for (Integer status : statusCounts.keySet())
+	    stdout.println("exit " + status + ": " +
+			   statusCounts.get(status) + " runs");
+
+	System.setOut(stdout);
+	System.setErr(stderr);
+    }
+
+    private static void usage() {
+	System.err.println("usage: java nachos.bench.SeedRunner [-j jobs] " +
+			   "[-o dir] first last [nachos args ...]");
+	System.exit(1);
+    }
+
+    /**
+     * Return the class path this runner was started with, from which each
+     * run loads its own copy of Nachos.
+     */
+    private static URL[] getClassPath() {
+	String[] entries =
+	    System.getProperty("java.class.path").split(File.pathSeparator);
+	URL[] urls = new URL[entries.length];
+
+	for (int i=0; i<entries.length; i++) {
+	    try {
+		urls[i] = new File(entries[i]).toURI().toURL();
+	    }
+	    catch (MalformedURLException e) {
+		throw new IllegalArgumentException(entries[i]);
+	    }
+	}
+
+	return urls;
+    }
+
+    /**
+     * Return the command line arguments for a Nachos run with the specified
+     * seed.
+     */
+    private static String[] buildArgs(long seed, List<String> nachosArgs) {
+	List<String> runArgs = new ArrayList<String>();
+
+	runArgs.add("-s");
+	runArgs.add(Long.toString(seed));
+	runArgs.addAll(nachosArgs);
+
+	return runArgs.toArray(new String[runArgs.size()]);
+    }
+
+    /**
+     * Run Nachos in this JVM, with its own copy of the Nachos classes, send
+     * its output and errors to a file, and return its exit status.
+     */
+    private static int run(URL[] classPath, String[] args, File output)
+	throws Exception {
+	OutputStream out =
+	    new BufferedOutputStream(new FileOutputStream(output));
+	RunClassLoader loader = new RunClassLoader(classPath);
+
+	runOutput.set(out);
+	try {
+	    Class<?> machine = loader.loadClass("nachos.machine.Machine");
+	    Method runHosted = machine.getMethod("runHosted", String[].class);
+
+	    return (Integer) runHosted.invoke(null, (Object) args);
+	}
+	catch (InvocationTargetException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof Exception)
+		throw (Exception) cause;
+	    throw (Error) cause;
+	}
+	finally {
+	    runOutput.remove();
+	    synchronized (out) {
+		out.close();
+	    }
+	    loader.close();
+	}
+    }
+
+    /**
+     * The output stream of the run each thread belongs to. Nachos threads
+     * are all started, directly or not, by the thread that starts the run,
+     * so they inherit it.
+     */
+    private static final InheritableThreadLocal<OutputStream> runOutput =
+	new InheritableThreadLocal<OutputStream>();
+
+    /**
+     * Sends what is written to it to the output stream of the current thread's
+     * run, or, outside any run, to the stream it replaced.
+     */
+    private static class RunOutputStream extends OutputStream {
+	RunOutputStream(OutputStream defaultOutput) {
+	    this.defaultOutput = defaultOutput;
+	}
+
+	public void write(int b) throws IOException {
+	    OutputStream out = target();
+	    synchronized (out) {
+		out.write(b);
+	    }
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    OutputStream out = target();
+	    synchronized (out) {
+		out.write(b, off, len);
+	    }
+	}
+
+	public void flush() throws IOException {
+	    OutputStream out = target();
+	    synchronized (out) {
+		out.flush();
+	    }
+	}
+
+	private OutputStream target() {
+	    OutputStream out = runOutput.get();
+	    return (out != null) ? out : defaultOutput;
+	}
+
+	private OutputStream defaultOutput;
+    }
+
+    /**
+     * Loads the <tt>nachos</tt> classes itself, rather than asking its parent
+     * first, so that each run gets its own copy of them and of their static
+     * state. Every other class comes from the parent as usual.
+     */
+    private static class RunClassLoader extends URLClassLoader {
+	RunClassLoader(URL[] classPath) {
+	    super(classPath, SeedRunner.class.getClassLoader());
+	}
+
+	protected Class<?> loadClass(String name, boolean resolve)
+	    throws ClassNotFoundException {
+	    if (!name.startsWith("nachos."))
+		return super.loadClass(name, resolve);
+
+	    synchronized (getClassLoadingLock(name)) {
+		Class<?> c = findLoadedClass(name);
+		if (c == null)
+		    c = findClass(name);
+		if (resolve)
+		    resolveClass(c);
+		return c;
+	    }
+	}
+    }
+}
@@ -0,0 +1,40 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures <tt>Semaphore.P()</tt> and <tt>V()</tt> by bouncing control
+ * between two threads with a pair of semaphores. Each operation is one round
+ * trip: the main thread signals <tt>ping</tt> and waits on <tt>pong</tt>,
+ * which the partner signals after waiting on <tt>ping</tt>.
+ */
+public class SemaphoreBench extends Benchmark {
+    /**
+     * Allocate a new semaphore ping-pong benchmark.
+     */
+    public SemaphoreBench() {
+	super("semaphore.pingpong", 2, 10000);
+    }
+
+    protected void run(final int operations) {
+	final Semaphore ping = new Semaphore(0);
+	final Semaphore pong = new Semaphore(0);
+	final Semaphore done = new Semaphore(0);
+
+	new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<operations; i++) {
+			ping.P();
+			pong.V();
+		    }
+		    done.V();
+		}
+	    }).setName("pong").fork();
+
+	for (int i=0; i<operations; i++) {
+	    ping.V();
+	    pong.P();
+	}
+	done.P();
+    }
+}
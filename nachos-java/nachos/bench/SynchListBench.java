@@ -0,0 +1,37 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures the throughput of <tt>SynchList</tt>. A producer thread adds
+ * items as fast as it can while the main thread removes them. Each operation
+ * is one <tt>add()</tt> and one <tt>removeFirst()</tt>.
+ */
+public class SynchListBench extends Benchmark {
+    /**
+     * Allocate a new synchronized list throughput benchmark.
+     */
+    public SynchListBench() {
+	super("synchlist.throughput", 2, 10000);
+    }
+
+    protected void run(final int operations) {
+	final SynchList list = new SynchList();
+	final Semaphore done = new Semaphore(0);
+
+	new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<operations; i++)
+			list.add(item);
+		    done.V();
+		}
+	    }).setName("producer").fork();
+
+	for (int i=0; i<operations; i++)
+	    list.removeFirst();
+	done.P();
+    }
+
+    /** Added over and over, so that allocation is not measured. */
+    private static final Object item = new Object();
+}
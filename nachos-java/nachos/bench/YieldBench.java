@@ -0,0 +1,39 @@
+package nachos.bench;
+
+import nachos.threads.*;
+
+/**
+ * Measures <tt>KThread.yield()</tt>. The main thread yields to a partner
+ * thread that does nothing but yield back. Each operation is one round trip,
+ * that is, two context switches.
+ */
+public class YieldBench extends Benchmark {
+    /**
+     * Allocate a new yield round trip benchmark.
+     */
+    public YieldBench() {
+	super("kthread.yield", 2, 10000);
+    }
+
+    protected void run(int operations) {
+	final Semaphore done = new Semaphore(0);
+
+	stop = false;
+
+	new KThread(new Runnable() {
+		public void run() {
+		    while (!stop)
+			KThread.yield();
+		    done.V();
+		}
+	    }).setName("yielder").fork();
+
+	for (int i=0; i<operations; i++)
+	    KThread.yield();
+
+	stop = true;
+	done.P();
+    }
+
+    private boolean stop;
+}
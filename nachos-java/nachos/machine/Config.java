@@ -82,19 +82,30 @@ public final class Config {
 	}
 	catch (Throwable e) {
 	    System.err.println("Error loading " + configFile);
-	    System.exit(1);
+	    exit();
 	}
     }
 
+    /**
+     * Exit with status 1, or, if Nachos is hosted and so must not exit the
+     * JVM, throw an error out of <tt>Machine.runHosted()</tt>.
+     */
+    private static void exit() {
+	if (Machine.isHosted())
+	    throw new Error("error in " + configFile);
+
+	System.exit(1);
+    }
+
     private static void loadError(int line) {
 	System.err.println("Error in " + configFile + " line " + line);
-	System.exit(1);
+	exit();
     }
 
     private static void configError(String message) {
 	System.err.println("");
 	System.err.println("Error in " + configFile + ": " + message);
-	System.exit(1);
+	exit();
     }
 
     /**
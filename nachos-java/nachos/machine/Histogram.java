@@ -0,0 +1,190 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of non-negative <tt>long</tt> values, such as durations in
+ * ticks or nanoseconds, in the style of HdrHistogram.
+ *
+ * <p>
+ * Values below 128 are counted exactly. Above that, each power of two is
+ * split into 64 equal buckets, so every value is counted in a bucket whose
+ * width is under 1/64 of the value, and any percentile is accurate to within
+ * about 1.6%. Recording a value costs a few shifts and an array increment,
+ * and the bucket array only grows as large as the largest value recorded
+ * requires.
+ */
+public final class Histogram {
+    /**
+     * Allocate a new, empty histogram.
+     */
+    public Histogram() {
+    }
+
+    /**
+     * Record a value in this histogram.
+     *
+     * @param	value	the value to record. Negative values are recorded as
+     *			zero.
+     */
+    public void record(long value) {
+	if (value < 0)
+	    value = 0;
+
+	int index = indexOf(value);
+	if (index >= counts.length)
+	    counts = Arrays.copyOf(counts, Math.max(index+1, counts.length*2));
+
+	counts[index]++;
+	count++;
+	sum += value;
+
+	if (value < min)
+	    min = value;
+	if (value > max)
+	    max = value;
+    }
+
+    /**
+     * Return the number of values recorded.
+     *
+     * @return	the number of values recorded.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Return the smallest value recorded, or 0 if none have been.
+     *
+     * @return	the smallest value recorded.
+     */
+    public long getMin() {
+	return (count == 0) ? 0 : min;
+    }
+
+    /**
+     * Return the largest value recorded, or 0 if none have been.
+     *
+     * @return	the largest value recorded.
+     */
+    public long getMax() {
+	return max;
+    }
+
+    /**
+     * Return the sum of all values recorded.
+     *
+     * @return	the sum of all values recorded.
+     */
+    public long getSum() {
+	return sum;
+    }
+
+    /**
+     * Return the mean of all values recorded, or 0 if none have been.
+     *
+     * @return	the mean of all values recorded.
+     */
+    public double getMean() {
+	return (count == 0) ? 0 : (double) sum / count;
+    }
+
+    /**
+     * Return the value below which the specified percentage of recorded
+     * values fall, to within the precision of the buckets.
+     *
+     * @param	percentile	the percentage, between 0 and 100.
+     * @return	the highest value in the bucket containing that percentile,
+     *		or 0 if no values have been recorded.
+     */
+    public long getPercentile(double percentile) {
+	Lib.assertTrue(percentile >= 0 && percentile <= 100);
+
+	if (count == 0)
+	    return 0;
+
+	long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+	long seen = 0;
+
+	for (int i=0; i<counts.length; i++) {
+	    seen += counts[i];
+	    if (seen >= target)
+		return Math.min(max, highestValueAt(i));
+	}
+
+	return max;
+    }
+
+    /**
+     * Return the number of buckets that might be non-empty. Buckets are
+     * numbered from 0, in increasing order of the values they hold.
+     *
+     * @return	the number of buckets.
+     */
+    public int getNumBuckets() {
+	return counts.length;
+    }
+
+    /**
+     * Return the number of values recorded in a bucket.
+     *
+     * @param	bucket	the bucket number.
+     * @return	the number of values in the bucket.
+     */
+    public long getBucketCount(int bucket) {
+	return counts[bucket];
+    }
+
+    /**
+     * Return the smallest value that is counted in a bucket.
+     *
+     * @param	bucket	the bucket number.
+     * @return	the smallest value in the bucket.
+     */
+    public static long lowestValueAt(int bucket) {
+	int exponent = (bucket >> subBucketHalfBits) - 1;
+	int subBucket = (bucket & (subBucketHalfCount-1)) + subBucketHalfCount;
+
+	if (exponent < 0) {
+	    exponent = 0;
+	    subBucket -= subBucketHalfCount;
+	}
+
+	return (long) subBucket << exponent;
+    }
+
+    /**
+     * Return the largest value that is counted in a bucket.
+     *
+     * @param	bucket	the bucket number.
+     * @return	the largest value in the bucket.
+     */
+    public static long highestValueAt(int bucket) {
+	int exponent = Math.max(0, (bucket >> subBucketHalfBits) - 1);
+
+	return lowestValueAt(bucket) + (1L << exponent) - 1;
+    }
+
+    private static int indexOf(long value) {
+	// the power of two above the first 128 values that holds this value
+	int exponent = 63 - subBucketHalfBits -
+	    Long.numberOfLeadingZeros(value | (subBucketCount-1));
+	int subBucket = (int) (value >>> exponent);
+
+	return ((exponent+1) << subBucketHalfBits) +
+	    (subBucket - subBucketHalfCount);
+    }
+
+    private static final int subBucketHalfBits = 6;
+    private static final int subBucketHalfCount = 1 << subBucketHalfBits;
+    private static final int subBucketCount = 2 * subBucketHalfCount;
+
+    private long[] counts = new long[subBucketCount];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+}
@@ -2,8 +2,12 @@ package nachos.machine;
 
 import nachos.security.Privilege;
 
-import java.util.Iterator;
-import java.util.TreeSet;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 
 /**
  * <tt>Interrupt</tt> Ŭ  ͷƮ ϵ ķƮմϴ. ϵ ͷƮ Ȱȭϰų Ȱȭϴ
@@ -28,6 +32,20 @@ import java.util.TreeSet;
  * ̴ ùٸ ʰ ȭ ڵ尡  ϵ ùķ̼ǿ  ۵  (ȭ Ÿ ̽ ), 
  * ϵ ۵    ǹմϴ. ׷ ݽ(Nachos)  α׷    ׻ 
  *  ùٸ ȭ ڵ带 ۼؾ մϴ.
+ *
+ * <p>
+ * <tt>Machine.numProcessors</tt> 1 ũ,    ޸𸮿 ͷƮ Ʈѷ ϴ  μ
+ * ùķ̼մϴ.  μ ڱ ð踦 , μ    ˴ϴ.    
+ * μ ڱ ð谡  (<tt>Machine.processorQuantum</tt> ƽ , ⺻ 100) ̸  ǹǷ,
+ * μ ð 뷫   ̻  ʽϴ. ٸ μ ȯ ͷƮ Ȱȭ ¿ Ǵ
+ * ƽ Ͼϴ. , ȯ Ÿ̸ ͷƮ   ִ  ϾǷ, ͷƮ Ȱȭ 
+ *  μ  ̰,   ùٸ Ŀ ڵ  μ ùٸ մϴ.  
+ * Դϴ.
+ *
+ * <p>
+ * ġ ͷƮ  ð  ̸ μ ް, Ÿ̸ ͷƮó <tt>scheduleOn()</tt> 
+ * ͷƮ  μ ޽ϴ. Ŀ <tt>setProcessorSwitchHandler()</tt> ȯ ڵ鷯 ϱ 
+ * ù ° μ ˴ϴ.
  */
 public final class Interrupt {
 	/**
@@ -42,7 +60,21 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingInterruptQueue();
+
+		numProcessors = Config.getInteger("Machine.numProcessors", 1);
+		Lib.assertTrue(numProcessors >= 1);
+		privilege.stats.numProcessors = numProcessors;
+
+		if (numProcessors > 1) {
+			quantum = Config.getInteger("Machine.processorQuantum", 100);
+			Lib.assertTrue(quantum > 0);
+
+			processorTime = new long[numProcessors];
+			localPending = new PendingInterruptQueue[numProcessors];
+			for (int i=0; i<numProcessors; i++)
+				localPending[i] = new PendingInterruptQueue();
+		}
 	}
 
 	/**
@@ -106,17 +138,89 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * ùķ̼ϴ μ  ȯմϴ.
+	 *
+	 * @return	<tt>Machine.numProcessors</tt>  μ , ⺻ 1.
+	 */
+	public int getNumProcessors() {
+		return numProcessors;
+	}
+
+	/**
+	 *    μ ȣ ȯմϴ.
+	 *
+	 * @return	0 <tt>getNumProcessors()-1</tt>  μ ȣ.
+	 */
+	public int getProcessor() {
+		return processor;
+	}
+
+	/**
+	 * ٸ μ ȯ  ȣ ڵ鷯 ϰ, ٸ μ ۽ŵϴ. ٸ μ ð 
+	 * ð մϴ. ڵ鷯 ͷƮ Ȱȭ ä,  μ ð Ͱ  ڿ ȣǸ,
+	 *  μ  ̴  ȯؾ մϴ. μ ϳ̸ ڵ鷯 ȣ ʽϴ.
+	 *
+	 * @param	handler	μ ȯ ڵ鷯.
+	 */
+	public void setProcessorSwitchHandler(Runnable handler) {
+		Lib.assertTrue(processorSwitchHandler == null);
+
+		processorSwitchHandler = handler;
+
+		if (numProcessors > 1) {
+			Arrays.fill(processorTime, privilege.stats.totalTicks);
+			turnEnd = privilege.stats.totalTicks + quantum;
+		}
+	}
+
+	/**
+	 *    μ ð踦 <i>time</i> մϴ. ð谡 ̹ <i>time</i>  ƹ ϵ 
+	 * ʽϴ. μ ð ݾ ߳ Ƿ, ٸ μ <i>time</i>  (  带 
+	 * ) ̾޴ μ    ޼带 ȣϿ  Ϻ ռ ð  ʰ մϴ. մ ð 
+	 *  ٸ ð̹Ƿ Ŀ ƽ̳  ƽ  ʰ,  ̿ ߻ ͷƮ  ƽ ó˴ϴ.
+	 *
+	 * @param	time	մ ð.
+	 */
+	public void advanceClock(long time) {
+		Lib.assertTrue(disabled());
+
+		if (time > privilege.stats.totalTicks)
+			privilege.stats.totalTicks = time;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt,
-				"Scheduling the " + type +
-						" interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type +
+					" interrupt handler at time = " + time);
+
+		pending.add(time, numPendingInterruptsCreated++, type, handler);
+	}
+
+	private void scheduleOn(int processor, long when, String type,
+				Runnable handler) {
+		Lib.assertTrue(processor >= 0 && processor < numProcessors);
+
+		if (localPending == null) {
+			schedule(when, type, handler);
+			return;
+		}
+
+		Lib.assertTrue(when > 0);
+
+		long time = privilege.stats.totalTicks + when;
+
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + type +
+					" interrupt handler on processor " + processor +
+					" at time = " + time);
 
-		pending.add(toOccur);
+		localPending[processor].add(time, numPendingInterruptsCreated++,
+				type, handler);
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -136,9 +240,128 @@ public final class Interrupt {
 
 		enabled = false;
 		checkIfDue();
+		if (stats.totalTicks >= turnEnd)
+			switchProcessor();
+		enabled = true;
+	}
+
+	/**
+	 *  ̸   ͷƮ(Ǵ ٸ μ ȯ) ߻ϱ  ƽ  ȯմϴ. μ  ƽ    
+	 * ƽ ͷƮ Ȯ ʰ   ,  ƽ <tt>tick(boolean, int)</tt>  
+	 * û  ֽϴ. ׷ ͷƮ  ùķ̼ ð ޵˴ϴ. ͷƮ     ƽ
+	 * ؾ ϹǷ 0 ȯմϴ.
+	 *
+	 * @return	 ͷƮ  ƽ .   ͷƮ  <tt>Long.MAX_VALUE</tt>.
+	 */
+	private long ticksUntilNextInterrupt() {
+		if (Lib.test(dbgInt))
+			return 0;
+
+		long time = nextEventTime();
+		if (time == Long.MAX_VALUE)
+			return Long.MAX_VALUE;
+
+		return time - privilege.stats.totalTicks;
+	}
+
+	/**
+	 *    μ  ̸   ͷƮ ð ʰ  ð  ̸  ȯմϴ.
+	 *
+	 * @return	  ð. ƹ͵  <tt>Long.MAX_VALUE</tt>.
+	 */
+	private long nextEventTime() {
+		long time = turnEnd;
+
+		if (!pending.isEmpty())
+			time = Math.min(time, pending.firstTime());
+		if (localPending != null && !localPending[processor].isEmpty())
+			time = Math.min(time, localPending[processor].firstTime());
+
+		return time;
+	}
+
+	/**
+	 * <tt>count</tt> ƽ     ߻   ͷƮ óմϴ. <tt>count</tt>
+	 * <tt>tick(inKernelMode)</tt> ȣ Ͱ   Ƿ,  ƽ  ߻ ͷƮ 
+	 * մϴ. ,   ƽ    ֽϴ. ͷƮ ڵ鷯 ؽƮ ġ Ű  ð
+	 * ߻  ͷƮ ó  ä ٸ 尡   ִµ, ̵  ƽ ó˴ϴ.
+	 *
+	 * @param	inKernelMode	Ŀ  ƽ̸ <tt>true</tt>.
+	 * @param	count		 ƽ .
+	 */
+	private void tick(boolean inKernelMode, int count) {
+		Stats stats = privilege.stats;
+		long ticks = (long) count * (inKernelMode ? Stats.KernelTick : Stats.UserTick);
+
+		Lib.assertTrue(count > 0);
+		Lib.assertTrue(count == 1 || stats.totalTicks + ticks <= nextEventTime());
+
+		if (inKernelMode)
+			stats.kernelTicks += ticks;
+		else
+			stats.userTicks += ticks;
+		stats.totalTicks += ticks;
+
+		if (Lib.test(dbgInt))
+			System.out.println("== Tick " + stats.totalTicks + " ==");
+
+		enabled = false;
+		checkIfDue();
+		if (stats.totalTicks >= turnEnd)
+			switchProcessor();
 		enabled = true;
 	}
 
+	/**
+	 *    μ ʸ   μ ȯմϴ.  μ ʰ   ʰ
+	 * ۵˴ϴ.  ޼ ȯ ڵ鷯  μ  ȯ ڿ,  μ ʰ ٽ ƿ;
+	 * մϴ.
+	 */
+	private void switchProcessor() {
+		Stats stats = privilege.stats;
+
+		processorTime[processor] = stats.totalTicks;
+		processor = (processor+1) % numProcessors;
+		if (processor == 0)
+			turnEnd += quantum;
+
+		stats.totalTicks = processorTime[processor];
+		stats.numProcessorSwitches++;
+
+		if (Lib.test(dbgInt))
+			System.out.println("== Processor " + processor + ", time " +
+					stats.totalTicks + " ==");
+
+		if (privilege.processor != null)
+			privilege.processor.selectProcessor(processor);
+
+		processorSwitchHandler.run();
+	}
+
+	/**
+	 *    μ , <i>time</i> ߻   ͷƮ   ̸   ִ ť ȯմϴ.
+	 *
+	 * @param	time	 ð.
+	 * @return	߻ ͷƮ  տ ִ ť.  <tt>null</tt>.
+	 */
+	private PendingInterruptQueue firstDue(long time) {
+		PendingInterruptQueue queue = pending;
+
+		if (localPending != null) {
+			PendingInterruptQueue local = localPending[processor];
+			if (!local.isEmpty() &&
+					(queue.isEmpty() || local.firstTime() < queue.firstTime() ||
+					 (local.firstTime() == queue.firstTime() &&
+					  local.firstId() < queue.firstId())))
+				queue = local;
+		}
+
+		if (queue.isEmpty() || queue.firstTime() > time)
+			return null;
+
+		return queue;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -147,75 +370,133 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		PendingInterruptQueue queue = firstDue(time);
+		if (queue == null)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty() &&
-				((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		Metrics metrics = Machine.metrics();
+
+		// ڵ鷯 ؽƮ ġ   尡 ٸ μ ٽ Ǹ,  ͷƮ  μ
+		//  ƽ ó˴ϴ
+		int current = processor;
 
-			Lib.assertTrue(next.time <= time);
+		while (processor == current && (queue = firstDue(time)) != null) {
+			String type = queue.firstType();
+			Runnable handler = queue.firstHandler();
+			long when = queue.firstTime();
+			queue.removeFirst();
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				System.out.println("  " + type);
 
-			next.handler.run();
+			if (metrics != null)
+				metrics.interruptHandled(type, when);
+
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
 	}
 
-	private void print() {
-		System.out.println("Time: " + privilege.stats.totalTicks
-				+ ", interrupts " + (enabled ? "on" : "off"));
-		System.out.println("Pending interrupts:");
+	/**
+	 * ͷƮ ¿   ͷƮ ߻  ӽ  ϴ. ڵ鷯 ڵ̹Ƿ  ʰ, 
+	 * ͷƮ ð, id,  ϴ.
+	 *
+	 * @param	out	 Ʈ.
+	 */
+	void writeState(DataOutput out) throws IOException {
+		Lib.assertTrue(numProcessors == 1,
+				"machine snapshots need a single processor");
+
+		out.writeBoolean(enabled);
+		out.writeLong(numPendingInterruptsCreated);
+		out.writeInt(pending.size());
+
+		PendingInterruptQueue queue = new PendingInterruptQueue(pending);
+		while (!queue.isEmpty()) {
+			out.writeLong(queue.firstTime());
+			out.writeLong(queue.firstId());
+			out.writeUTF(queue.firstType());
+			queue.removeFirst();
+		}
+	}
 
-		for (Iterator i = pending.iterator(); i.hasNext(); ) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type +
-					", scheduled at " + toOccur.time);
+	/**
+	 * ͷƮ ¿   ͷƮ <tt>writeState()</tt>   ٲߴϴ. ͷƮ ° ٲ
+	 * ùķ̼ǵ ð  ʽϴ.   ͷƮ    
+	 *  ͷƮ ڵ鷯 ߻  ϳ ٽϴ.   ڵ鷯    ͷƮ(  ̹
+	 * ҵ ˶)    ͷƮ ϴ.
+	 *
+	 * @param	in	 Ʈ.
+	 */
+	void readState(DataInput in) throws IOException {
+		Lib.assertTrue(numProcessors == 1,
+				"machine snapshots need a single processor");
+
+		HashMap<String, ArrayList<Runnable>> handlers =
+			new HashMap<String, ArrayList<Runnable>>();
+
+		while (!pending.isEmpty()) {
+			ArrayList<Runnable> list = handlers.get(pending.firstType());
+			if (list == null) {
+				list = new ArrayList<Runnable>();
+				handlers.put(pending.firstType(), list);
+			}
+			list.add(pending.firstHandler());
+			pending.removeFirst();
 		}
 
-		System.out.println("  (end of list)");
-	}
+		enabled = in.readBoolean();
+		numPendingInterruptsCreated = in.readLong();
+
+		int count = in.readInt();
+		for (int i=0; i<count; i++) {
+			long time = in.readLong();
+			long id = in.readLong();
+			String type = in.readUTF();
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+			ArrayList<Runnable> list = handlers.get(type);
+			if (list == null || list.isEmpty()) {
+				Lib.debug(dbgInt, "Dropping the snapshot's " + type +
+						" interrupt at time = " + time);
+				continue;
+			}
+
+			pending.add(time, id, type, list.remove(0));
 		}
+	}
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
+	private void print() {
+		System.out.println("Time: " + privilege.stats.totalTicks
+				+ ", interrupts " + (enabled ? "on" : "off"));
+		if (numProcessors > 1)
+			System.out.println("Processor: " + processor);
+		System.out.println("Pending interrupts:");
 
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
+		//   ȸ  Ƿ 纻 ϳ ϴ
+		PendingInterruptQueue queue = new PendingInterruptQueue(pending);
+		while (!queue.isEmpty()) {
+			System.out.println("  " + queue.firstType() +
+					", scheduled at " + queue.firstTime());
+			queue.removeFirst();
 		}
 
-		long time;
-		String type;
-		Runnable handler;
+		if (localPending != null) {
+			queue = new PendingInterruptQueue(localPending[processor]);
+			while (!queue.isEmpty()) {
+				System.out.println("  " + queue.firstType() +
+						", scheduled at " + queue.firstTime() +
+						" on processor " + processor);
+				queue.removeFirst();
+			}
+		}
 
-		private long id;
+		System.out.println("  (end of list)");
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -223,7 +504,20 @@ public final class Interrupt {
 	private Privilege privilege;
 
 	private boolean enabled;
-	private TreeSet<PendingInterrupt> pending;
+	private PendingInterruptQueue pending;
+
+	private int numProcessors;
+	/**    μ ȣ. */
+	private int processor = 0;
+	/**   (ƽ). */
+	private long quantum;
+	/**  ʰ  ð. ٸ μ ۵Ǳ  <tt>Long.MAX_VALUE</tt>. */
+	private long turnEnd = Long.MAX_VALUE;
+	/**   ƴ μ ð. */
+	private long[] processorTime;
+	/**  μ ޴   ͷƮ. μ ϳ̸ <tt>null</tt>. */
+	private PendingInterruptQueue[] localPending;
+	private Runnable processorSwitchHandler = null;
 
 	private static final char dbgInt = 'i';
 
@@ -232,8 +526,21 @@ public final class Interrupt {
 			Interrupt.this.schedule(when, type, handler);
 		}
 
+		public void scheduleOn(int processor, long when, String type,
+				Runnable handler) {
+			Interrupt.this.scheduleOn(processor, when, type, handler);
+		}
+
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long ticksUntilNextInterrupt() {
+			return Interrupt.this.ticksUntilNextInterrupt();
+		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
 	}
 }
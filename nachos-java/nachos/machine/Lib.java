@@ -32,7 +32,7 @@ public final class Lib {
     private Lib() {
     }
 
-    private static Random random = null;
+    private static SeededRandom random = null;
 
     /**
      * Seed the random number generater. May only be called once.
@@ -41,9 +41,52 @@ public final class Lib {
      */
     public static void seedRandom(long randomSeed) {
 		assertTrue(random == null);
-		random = new Random(randomSeed);
+		random = new SeededRandom(randomSeed);
     }
-    
+
+    /**
+     * Return the state of the random number generator, so that it can be
+     * written to a machine snapshot.
+     *
+     * @return	the state of the random number generator.
+     */
+    static long getRandomState() {
+	return random.state;
+    }
+
+    /**
+     * Set the state of the random number generator to one read from a
+     * machine snapshot.
+     *
+     * @param	state	a state returned by <tt>getRandomState()</tt>.
+     */
+    static void setRandomState(long state) {
+	random.state = state;
+    }
+
+    /**
+     * The generator of <tt>java.util.Random</tt>, with its state kept where
+     * it can be saved. It produces exactly the same numbers as a
+     * <tt>Random</tt> given the same seed.
+     */
+    private static class SeededRandom extends Random {
+	SeededRandom(long seed) {
+	    state = (seed ^ multiplier) & mask;
+	}
+
+	protected int next(int bits) {
+	    state = (state * multiplier + addend) & mask;
+	    return (int) (state >>> (48 - bits));
+	}
+
+	long state;
+
+	private static final long serialVersionUID = 1L;
+	private static final long multiplier = 0x5DEECE66DL;
+	private static final long addend = 0xBL;
+	private static final long mask = (1L << 48) - 1;
+    }
+
     /**
      * Return a random integer between 0 and <i>range - 1</i>. Must not be
      * called before <tt>seedRandom()</tt> seeds the random number generator.
@@ -460,14 +503,15 @@ public final class Lib {
 
     /**
      * Load and return the named class, or return <tt>null</tt> if the class
-     * could not be loaded.
+     * could not be loaded. Classes are loaded by the class loader that loaded
+     * Nachos, which is not the system class loader when Nachos is hosted.
      *
      * @param	className	the name of the class to load.
      * @return	the loaded class, or <tt>null</tt> if an error occurred.
      */
     public static Class tryLoadClass(String className) {
 	try {
-	    return ClassLoader.getSystemClassLoader().loadClass(className);
+	    return Lib.class.getClassLoader().loadClass(className);
 	}
 	catch (Throwable e) {
 	    return null;
@@ -482,7 +526,7 @@ public final class Lib {
      */
     public static Class loadClass(String className) {
 	try {
-	    return ClassLoader.getSystemClassLoader().loadClass(className);
+	    return Lib.class.getClassLoader().loadClass(className);
 	}
 	catch (Throwable e) {
 	    Machine.terminate(e);
@@ -6,6 +6,7 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.util.LinkedList;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -52,7 +53,14 @@ public final class Machine {
 		TCB.givePrivilege(privilege);
 		privilege.stats = stats;
 
-		securityManager.enable();
+		if (hosted) {
+			securityManager.host(new Runnable() {
+				public void run() { TCB.halt(); }
+			});
+		}
+		else {
+			securityManager.enable();
+		}
 		createDevices();
 		checkUserClasses();
 
@@ -63,6 +71,49 @@ public final class Machine {
 		});
     }
 
+    /**
+     * Run Nachos, as <tt>main()</tt> does, but without exiting the JVM when
+     * Nachos exits, and return its exit status instead. This lets one JVM
+     * host several runs at once, each loading its own copy of the
+     * <tt>nachos</tt> classes through its own class loader, since all the
+     * state of the machine is static. Only one run may be hosted by each
+     * copy.
+     *
+     * <p>
+     * A hosted run does not install the security manager, which would be
+     * shared by every run in the JVM, so the kernel and autograder it runs
+     * are trusted. When Nachos exits, every TCB is stopped and its Java thread
+     * unwound; this method returns once the first TCB has stopped. Output and
+     * input go through <tt>System.out</tt> and <tt>System.in</tt> as usual,
+     * so it is up to the host to keep the runs apart.
+     *
+     * @param	args	the command line arguments.
+     * @return	the exit status passed to <tt>privilege.exit()</tt>.
+     */
+    public static int runHosted(String[] args) {
+	Lib.assertTrue(Machine.args == null);
+	hosted = true;
+
+	try {
+	    main(args);
+	}
+	catch (ThreadDeath e) {
+	    // the first TCB stopped itself by exiting from threadroot()
+	}
+
+	return securityManager.getExitStatus();
+    }
+
+    /**
+     * Test if this run of Nachos is hosted by <tt>runHosted()</tt>, rather
+     * than started by <tt>main()</tt>.
+     *
+     * @return	<tt>true</tt> if Nachos must not exit the JVM.
+     */
+    static boolean isHosted() {
+	return hosted;
+    }
+
     /**
      * Yield to non-Nachos threads. Use in non-preemptive JVM's to give
      * non-Nachos threads a chance to run.
@@ -92,14 +143,34 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Print stats, run the halt notification handlers, export metrics if they
+     * are enabled, and terminate Nachos.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	for (Runnable handler : haltNotificationHandlers)
+	    handler.run();
+
+	if (metrics != null)
+	    metrics.export();
+
 	terminate();
     }
 
+    /**
+     * Add a <tt>halt()</tt> notification handler. The handler will be invoked
+     * by <tt>halt()</tt>, after the machine statistics are printed, so that
+     * the kernel can print statistics of its own however the machine comes to
+     * be halted.
+     *
+     * @param	handler	the notification handler.
+     */
+    public static void addHaltNotificationHandler(Runnable handler) {
+	haltNotificationHandlers.add(handler);
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -113,6 +184,16 @@ public final class Machine {
 	return result;
     }
 
+    /**
+     * Return the seed the random number generator was given, by the
+     * <tt>-s</tt> switch or by default.
+     *
+     * @return	the random seed.
+     */
+    static long getRandomSeed() {
+	return randomSeed;
+    }
+
     private static void processArgs() {
 	for (int i=0; i<args.length; ) {
 	    String arg = args[i++];
@@ -187,6 +268,12 @@ public final class Machine {
 
 	if (Config.getBoolean("Machine.networkLink"))
 	    networkLink = new NetworkLink(privilege);
+
+	if (Config.getBoolean("Machine.metrics", false))
+	    metrics = new Metrics(privilege);
+
+	if (Config.getBoolean("Machine.swap", false))
+	    swap = new SwapDevice(privilege);
     }
 
     private static void checkUserClasses() {
@@ -317,7 +404,8 @@ public final class Machine {
     public static ElevatorBank bank() { return bank; }
     
     /**
-     * Return the MIPS processor.
+     * Return the MIPS processor. If the machine simulates several processors,
+     * its registers and TLB are those of the processor that is running.
      *
      * @return	the MIPS processor, or <tt>null</tt> if it is not present.
      */     
@@ -343,6 +431,21 @@ public final class Machine {
      * @return	the network link,  or <tt>null</tt> if it is not present.
      */
     public static NetworkLink networkLink() { return networkLink; }
+
+    /**
+     * Return the scheduling metrics collector.
+     *
+     * @return	the metrics collector, or <tt>null</tt> if metrics are not
+     *		enabled.
+     */
+    public static Metrics metrics() { return metrics; }
+
+    /**
+     * Return the paging device.
+     *
+     * @return	the paging device, or <tt>null</tt> if it is not present.
+     */
+    public static SwapDevice swap() { return swap; }
     
     /**
      * Return the autograder.
@@ -358,6 +461,8 @@ public final class Machine {
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
+    private static Metrics metrics = null;
+    private static SwapDevice swap = null;
     private static AutoGrader autoGrader = null;
 
     private static String autoGraderClassName = "nachos.ag.AutoGrader";
@@ -407,8 +512,11 @@ public final class Machine {
     private static Privilege privilege;
 
     private static String[] args = null;
+    private static boolean hosted = false;
 
     private static Stats stats = new Stats();
+    private static LinkedList<Runnable> haltNotificationHandlers =
+	new LinkedList<Runnable>();
 
     private static int numPhysPages = -1;
     private static long randomSeed = 0;
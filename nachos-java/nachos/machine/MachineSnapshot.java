@@ -0,0 +1,195 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Saves the state of the simulated machine to a compact binary file, and
+ * loads it back into another run, so that many runs can start from a machine
+ * that has already been through the same kernel self test.
+ *
+ * <p>
+ * Loading a snapshot only skips <tt>Kernel.selfTest()</tt>. Everything else a
+ * run does still happens: <tt>Config.load()</tt>, creating the devices,
+ * <tt>Kernel.initialize()</tt>, and loading any COFF programs the
+ * autograder runs afterwards. A snapshot saves time only in proportion to
+ * how long the self test takes.
+ *
+ * <p>
+ * A snapshot holds only what the rest of the run depends on: <tt>Stats</tt>
+ * (including the clock), the random number generator, and the pending
+ * interrupts. It does not hold the processor's registers, translations or
+ * memory, since the autograder loads each program into them afresh, nor the
+ * kernel: threads, their stacks and the kernel's data structures are Java
+ * objects, not machine state. A snapshot can therefore only be loaded into a
+ * run of the same kernel and configuration that has been brought to the same
+ * point without the work the snapshot replaces, and should only be taken when
+ * that work has left no threads or processes behind.
+ *
+ * <p>
+ * The autograder saves a snapshot after <tt>Kernel.selfTest()</tt> if
+ * <tt>AutoGrader.saveSnapshot</tt> names a file, and loads one instead of
+ * calling <tt>selfTest()</tt> if <tt>AutoGrader.loadSnapshot</tt> does.
+ *
+ * <p>
+ * Interrupt handlers are code, so pending interrupts are saved by time, id
+ * and type only, and each is matched on loading with a handler of the same
+ * type that the devices of the loading run have scheduled (see
+ * <tt>Interrupt</tt>). The random number generator is only restored if the
+ * loading run was given the same <tt>-s</tt> seed as the saving run. Runs
+ * given other seeds keep their own generators, so several runs forked from
+ * one snapshot with different seeds go different ways from that point.
+ */
+public final class MachineSnapshot {
+    /**
+     * Prevent instantiation.
+     */
+    private MachineSnapshot() {
+    }
+
+    /**
+     * Write the state of the machine to a snapshot file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the name of the file to write.
+     */
+    public static void save(final Privilege privilege, final String fileName) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() { savePrivileged(privilege, fileName); }
+	    });
+    }
+
+    /**
+     * Replace the state of the machine with that in a snapshot file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileName	the name of the file to read.
+     */
+    public static void load(final Privilege privilege, final String fileName) {
+	privilege.doPrivileged(new Runnable() {
+		public void run() { loadPrivileged(privilege, fileName); }
+	    });
+    }
+
+    private static void savePrivileged(Privilege privilege, String fileName) {
+	long startTime = System.nanoTime();
+
+	try {
+	    DataOutputStream out = new DataOutputStream(
+		new BufferedOutputStream(new FileOutputStream(fileName)));
+
+	    writeHeader(out);
+	    writeStats(out, privilege.stats);
+	    out.writeLong(Lib.getRandomState());
+
+	    Machine.interrupt().writeState(out);
+
+	    out.close();
+	}
+	catch (IOException e) {
+	    System.out.println("could not write snapshot to " + fileName);
+	    return;
+	}
+
+	Lib.debug(dbgSnapshot, "saved " + fileName + " in " +
+		  (System.nanoTime() - startTime) / 1000 + " us");
+    }
+
+    private static void loadPrivileged(Privilege privilege, String fileName) {
+	long startTime = System.nanoTime();
+
+	try {
+	    DataInputStream in = new DataInputStream(
+		new BufferedInputStream(new FileInputStream(fileName)));
+
+	    boolean sameSeed = readHeader(in);
+	    readStats(in, privilege.stats);
+	    long randomState = in.readLong();
+	    if (sameSeed)
+		Lib.setRandomState(randomState);
+
+	    Machine.interrupt().readState(in);
+
+	    in.close();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not read snapshot from " + fileName);
+	}
+
+	Lib.debug(dbgSnapshot, "loaded " + fileName + " in " +
+		  (System.nanoTime() - startTime) / 1000 + " us");
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+	out.writeInt(magic);
+	out.writeInt(version);
+	out.writeUTF(Config.getString("Kernel.kernel"));
+	out.writeLong(Machine.getRandomSeed());
+    }
+
+    /**
+     * Check that a snapshot was saved by a compatible machine, and return
+     * <tt>true</tt> if it was saved by a run with the same random seed.
+     */
+    private static boolean readHeader(DataInputStream in) throws IOException {
+	Lib.assertTrue(in.readInt() == magic && in.readInt() == version,
+		       "not a snapshot, or from another version of Nachos");
+	Lib.assertTrue(in.readUTF().equals(Config.getString("Kernel.kernel")),
+		       "snapshot was saved by a different kernel");
+
+	return in.readLong() == Machine.getRandomSeed();
+    }
+
+    private static void writeStats(DataOutputStream out, Stats stats)
+	throws IOException {
+	out.writeLong(stats.totalTicks);
+	out.writeLong(stats.kernelTicks);
+	out.writeLong(stats.userTicks);
+	out.writeInt(stats.numDiskReads);
+	out.writeInt(stats.numDiskWrites);
+	out.writeInt(stats.numConsoleReads);
+	out.writeInt(stats.numConsoleWrites);
+	out.writeInt(stats.numPageFaults);
+	out.writeInt(stats.numTLBMisses);
+	out.writeInt(stats.numPacketsSent);
+	out.writeInt(stats.numPacketsReceived);
+	out.writeInt(stats.numDeadlines);
+	out.writeInt(stats.numDeadlineMisses);
+	out.writeLong(stats.maxDeadlineLateness);
+    }
+
+    private static void readStats(DataInputStream in, Stats stats)
+	throws IOException {
+	stats.totalTicks = in.readLong();
+	stats.kernelTicks = in.readLong();
+	stats.userTicks = in.readLong();
+	stats.numDiskReads = in.readInt();
+	stats.numDiskWrites = in.readInt();
+	stats.numConsoleReads = in.readInt();
+	stats.numConsoleWrites = in.readInt();
+	stats.numPageFaults = in.readInt();
+	stats.numTLBMisses = in.readInt();
+	stats.numPacketsSent = in.readInt();
+	stats.numPacketsReceived = in.readInt();
+	stats.numDeadlines = in.readInt();
+	stats.numDeadlineMisses = in.readInt();
+	stats.maxDeadlineLateness = in.readLong();
+    }
+
+    /** "NSNP" */
+    private static final int magic = 0x4E534E50;
+    private static final int version = 3;
+
+    private static final char dbgSnapshot = 'k';
+}
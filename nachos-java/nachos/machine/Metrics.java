@@ -0,0 +1,465 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.TreeMap;
+
+/**
+ * Collects scheduling metrics while Nachos runs, and exports them when the
+ * machine halts. It is enabled by the <tt>Machine.metrics</tt> configuration
+ * key, in which case <tt>Machine.metrics()</tt> returns it.
+ *
+ * <p>
+ * For each thread, it records how often the thread was dispatched, how long
+ * it ran each time, and how long it waited in each ready queue before
+ * running. For each queue, it records how long threads waited in it. It also
+ * records how long the TCB handoff of each context switch takes, and how late
+ * each interrupt was handled. Durations are kept as <tt>Histogram</tt>s, both
+ * in simulated ticks and in wall-clock nanoseconds.
+ *
+ * <p>
+ * <tt>KThread</tt> reports its ready queue through
+ * <tt>queueWaitStarted()</tt> and <tt>threadDispatched()</tt>. Other thread
+ * queues, such as those of a scheduler for locks, can report into the same
+ * metrics through <tt>queueWaitStarted()</tt> and <tt>queueWaitEnded()</tt>.
+ * Threads and queues are identified by the objects passed in, and named by
+ * their <tt>toString()</tt> unless given a name with <tt>nameQueue()</tt>.
+ *
+ * <p>
+ * The metrics are written in JSON, or in CSV if <tt>Metrics.format</tt> is
+ * <tt>csv</tt>, to the file named by <tt>Metrics.file</tt>, or to standard
+ * output if there is none.
+ */
+public final class Metrics {
+    /**
+     * Allocate a new metrics collector.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public Metrics(Privilege privilege) {
+	System.out.print(" metrics");
+
+	this.privilege = privilege;
+
+	format = Config.getString("Metrics.format", "json");
+	Lib.assertTrue(format.equals("json") || format.equals("csv"),
+		       "unknown Metrics.format: " + format);
+
+	fileName = Config.getString("Metrics.file");
+    }
+
+    /**
+     * Give a queue a name to be exported under.
+     *
+     * @param	queue	the queue.
+     * @param	name	the name of the queue.
+     */
+    public void nameQueue(Object queue, String name) {
+	getQueue(queue).name = name;
+    }
+
+    /**
+     * Record that a thread has started waiting in a queue. A thread waits in
+     * at most one queue at a time.
+     *
+     * @param	queue	the queue the thread is waiting in.
+     * @param	thread	the thread.
+     */
+    public void queueWaitStarted(Object queue, Object thread) {
+	ThreadRecord record = getThread(thread);
+
+	record.waitQueue = getQueue(queue);
+	record.waitStartTicks = privilege.stats.totalTicks;
+	record.waitStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Record that a thread has stopped waiting in a queue. Does nothing if
+     * the thread was not recorded as waiting in it.
+     *
+     * @param	queue	the queue the thread was waiting in.
+     * @param	thread	the thread.
+     */
+    public void queueWaitEnded(Object queue, Object thread) {
+	ThreadRecord record = getThread(thread);
+	QueueRecord queueRecord = record.waitQueue;
+
+	if (queueRecord == null || queueRecord.queue != queue)
+	    return;
+
+	long ticks = privilege.stats.totalTicks - record.waitStartTicks;
+	long nanos = System.nanoTime() - record.waitStartNanos;
+
+	record.getWait(queueRecord).record(ticks, nanos);
+	queueRecord.waits.record(ticks, nanos);
+
+	record.waitQueue = null;
+    }
+
+    /**
+     * Record that a thread has been taken from a ready queue and is about to
+     * replace the current thread on the CPU. Ends the wait of the next thread
+     * in the queue, if it was waiting in it, and the run of the previous
+     * thread.
+     *
+     * @param	queue	the ready queue.
+     * @param	previous	the thread giving up the CPU.
+     * @param	next		the thread about to run, which may be the same
+     *				as <i>previous</i>.
+     */
+    public void threadDispatched(Object queue, Object previous, Object next) {
+	long ticks = privilege.stats.totalTicks;
+	long nanos = System.nanoTime();
+
+	ThreadRecord previousRecord = getThread(previous);
+	if (previousRecord.running) {
+	    previousRecord.runs.record(ticks - previousRecord.runStartTicks,
+				       nanos - previousRecord.runStartNanos);
+	    previousRecord.running = false;
+	}
+
+	queueWaitEnded(queue, next);
+
+	ThreadRecord nextRecord = getThread(next);
+	nextRecord.dispatches++;
+	nextRecord.running = true;
+	nextRecord.runStartTicks = ticks;
+	nextRecord.runStartNanos = nanos;
+    }
+
+    /**
+     * Record that the current TCB is about to hand the CPU to another. Called
+     * by <tt>TCB.contextSwitch()</tt>.
+     */
+    void contextSwitchStarted() {
+	switchStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Record that a TCB has been handed the CPU by a context switch. Called by
+     * the TCB that was switched to.
+     */
+    void contextSwitchFinished() {
+	if (switchStartNanos == 0)
+	    return;
+
+	contextSwitches.record(System.nanoTime() - switchStartNanos);
+	switchStartNanos = 0;
+    }
+
+    /**
+     * Record that an interrupt handler is about to be invoked. Called by
+     * <tt>Interrupt</tt>.
+     *
+     * @param	type	the type of the interrupt.
+     * @param	when	the time the interrupt was due.
+     */
+    void interruptHandled(String type, long when) {
+	Histogram lateness = interrupts.get(type);
+	if (lateness == null) {
+	    lateness = new Histogram();
+	    interrupts.put(type, lateness);
+	}
+
+	lateness.record(privilege.stats.totalTicks - when);
+    }
+
+    /**
+     * Export the metrics collected so far. Called by <tt>Machine.halt()</tt>.
+     */
+    public void export() {
+	privilege.doPrivileged(new Runnable() {
+		public void run() { exportPrivileged(); }
+	    });
+    }
+
+    private void exportPrivileged() {
+	PrintStream out = System.out;
+
+	if (fileName != null) {
+	    try {
+		out = new PrintStream(new FileOutputStream(fileName));
+	    }
+	    catch (IOException e) {
+		System.out.println("could not write metrics to " + fileName);
+		return;
+	    }
+	}
+
+	if (format.equals("csv"))
+	    writeCSV(out);
+	else
+	    writeJSON(out);
+
+	if (fileName != null)
+	    out.close();
+	else
+	    out.flush();
+    }
+
+    private void writeJSON(PrintStream out) {
+	out.println("{");
+	out.println("  \"totalTicks\": " + privilege.stats.totalTicks + ",");
+	out.println("  \"contextSwitchNanos\": " +
+		    histogramJSON(contextSwitches) + ",");
+
+	out.println("  \"interruptLatenessTicks\": {");
+	int i = 0;
+	for (String type : interrupts.keySet()) {
+	    out.println("    " + quote(type) + ": " +
+			histogramJSON(interrupts.get(type)) +
+			(++i < interrupts.size() ? "," : ""));
+	}
+	out.println("  },");
+
+	out.println("  \"threads\": [");
+	for (i=0; i<threadList.size(); i++) {
+	    ThreadRecord record = threadList.get(i);
+
+	    out.println("    {");
+	    out.println("      \"name\": " + quote(record.thread.toString()) +
+			",");
+	    out.println("      \"dispatches\": " + record.dispatches + ",");
+	    out.println("      \"runTicks\": " +
+			histogramJSON(record.runs.ticks) + ",");
+	    out.println("      \"runNanos\": " +
+			histogramJSON(record.runs.nanos) + ",");
+	    out.println("      \"queueWaits\": [");
+	    for (int j=0; j<record.waitQueues.size(); j++) {
+		out.println("        { \"queue\": " +
+			    quote(record.waitQueues.get(j).getName()) + ",");
+		out.println("          \"waitTicks\": " +
+			    histogramJSON(record.waits.get(j).ticks) + ",");
+		out.println("          \"waitNanos\": " +
+			    histogramJSON(record.waits.get(j).nanos) + " }" +
+			    (j+1 < record.waitQueues.size() ? "," : ""));
+	    }
+	    out.println("      ]");
+	    out.println("    }" + (i+1 < threadList.size() ? "," : ""));
+	}
+	out.println("  ],");
+
+	out.println("  \"queues\": [");
+	for (i=0; i<queueList.size(); i++) {
+	    QueueRecord record = queueList.get(i);
+
+	    out.println("    { \"name\": " + quote(record.getName()) + ",");
+	    out.println("      \"waitTicks\": " +
+			histogramJSON(record.waits.ticks) + ",");
+	    out.println("      \"waitNanos\": " +
+			histogramJSON(record.waits.nanos) + " }" +
+			(i+1 < queueList.size() ? "," : ""));
+	}
+	out.println("  ]");
+	out.println("}");
+    }
+
+    private static String histogramJSON(Histogram histogram) {
+	StringBuffer buf = new StringBuffer();
+
+	buf.append("{ \"count\": " + histogram.getCount() +
+		   ", \"min\": " + histogram.getMin() +
+		   ", \"mean\": " + String.format("%.1f", histogram.getMean()) +
+		   ", \"p50\": " + histogram.getPercentile(50) +
+		   ", \"p90\": " + histogram.getPercentile(90) +
+		   ", \"p99\": " + histogram.getPercentile(99) +
+		   ", \"max\": " + histogram.getMax() +
+		   ", \"buckets\": [");
+
+	// only the non-empty buckets, as [lowest value, count] pairs
+	boolean first = true;
+	for (int i=0; i<histogram.getNumBuckets(); i++) {
+	    if (histogram.getBucketCount(i) == 0)
+		continue;
+
+	    if (!first)
+		buf.append(", ");
+	    first = false;
+
+	    buf.append("[" + Histogram.lowestValueAt(i) + ", " +
+		       histogram.getBucketCount(i) + "]");
+	}
+
+	buf.append("] }");
+	return buf.toString();
+    }
+
+    private static String quote(String s) {
+	StringBuffer buf = new StringBuffer("\"");
+
+	for (int i=0; i<s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c == '"' || c == '\\')
+		buf.append('\\').append(c);
+	    else if (c < ' ')
+		buf.append(String.format("\\u%04x", (int) c));
+	    else
+		buf.append(c);
+	}
+
+	return buf.append('"').toString();
+    }
+
+    private void writeCSV(PrintStream out) {
+	out.println("scope,name,queue,metric,count,min,mean,p50,p90,p99,max");
+
+	writeCSV(out, "machine", "", "", "contextSwitchNanos",
+		 contextSwitches);
+	for (String type : interrupts.keySet())
+	    writeCSV(out, "interrupt", type, "", "latenessTicks",
+		     interrupts.get(type));
+
+	for (ThreadRecord record : threadList) {
+	    String name = record.thread.toString();
+
+	    writeCSV(out, "thread", name, "", "runTicks", record.runs.ticks);
+	    writeCSV(out, "thread", name, "", "runNanos", record.runs.nanos);
+	    for (int j=0; j<record.waitQueues.size(); j++) {
+		String queue = record.waitQueues.get(j).getName();
+
+		writeCSV(out, "thread", name, queue, "waitTicks",
+			 record.waits.get(j).ticks);
+		writeCSV(out, "thread", name, queue, "waitNanos",
+			 record.waits.get(j).nanos);
+	    }
+	}
+
+	for (QueueRecord record : queueList) {
+	    writeCSV(out, "queue", record.getName(), "", "waitTicks",
+		     record.waits.ticks);
+	    writeCSV(out, "queue", record.getName(), "", "waitNanos",
+		     record.waits.nanos);
+	}
+    }
+
+    private static void writeCSV(PrintStream out, String scope, String name,
+				 String queue, String metric,
+				 Histogram histogram) {
+	out.println(scope + "," + csvField(name) + "," + csvField(queue) +
+		    "," + metric + "," + histogram.getCount() +
+		    "," + histogram.getMin() +
+		    "," + String.format("%.1f", histogram.getMean()) +
+		    "," + histogram.getPercentile(50) +
+		    "," + histogram.getPercentile(90) +
+		    "," + histogram.getPercentile(99) +
+		    "," + histogram.getMax());
+    }
+
+    private static String csvField(String s) {
+	if (s.indexOf(',') < 0 && s.indexOf('"') < 0)
+	    return s;
+
+	return "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    private ThreadRecord getThread(Object thread) {
+	ThreadRecord record = threads.get(thread);
+	if (record == null) {
+	    record = new ThreadRecord(thread);
+	    threads.put(thread, record);
+	    threadList.add(record);
+	}
+
+	return record;
+    }
+
+    private QueueRecord getQueue(Object queue) {
+	QueueRecord record = queues.get(queue);
+	if (record == null) {
+	    record = new QueueRecord(queue, queueList.size());
+	    queues.put(queue, record);
+	    queueList.add(record);
+	}
+
+	return record;
+    }
+
+    /** A pair of histograms for the same durations in ticks and nanoseconds. */
+    private static class Durations {
+	void record(long ticks, long nanos) {
+	    this.ticks.record(ticks);
+	    this.nanos.record(nanos);
+	}
+
+	Histogram ticks = new Histogram();
+	Histogram nanos = new Histogram();
+    }
+
+    private static class ThreadRecord {
+	ThreadRecord(Object thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Return the wait times of this thread in the specified queue. A
+	 * thread rarely waits in more than a couple of queues, so a list is
+	 * searched.
+	 */
+	Durations getWait(QueueRecord queue) {
+	    int index = waitQueues.indexOf(queue);
+	    if (index < 0) {
+		waitQueues.add(queue);
+		waits.add(new Durations());
+		index = waits.size() - 1;
+	    }
+
+	    return waits.get(index);
+	}
+
+	Object thread;
+
+	long dispatches = 0;
+	boolean running = false;
+	long runStartTicks, runStartNanos;
+	Durations runs = new Durations();
+
+	QueueRecord waitQueue = null;
+	long waitStartTicks, waitStartNanos;
+	ArrayList<QueueRecord> waitQueues = new ArrayList<QueueRecord>();
+	ArrayList<Durations> waits = new ArrayList<Durations>();
+    }
+
+    private static class QueueRecord {
+	QueueRecord(Object queue, int number) {
+	    this.queue = queue;
+	    this.number = number;
+	}
+
+	String getName() {
+	    if (name != null)
+		return name;
+	    else
+		return queue.getClass().getName() + " #" + number;
+	}
+
+	Object queue;
+	int number;
+	String name = null;
+	Durations waits = new Durations();
+    }
+
+    private Privilege privilege;
+    private String format;
+    private String fileName;
+
+    private IdentityHashMap<Object, ThreadRecord> threads =
+	new IdentityHashMap<Object, ThreadRecord>();
+    private ArrayList<ThreadRecord> threadList = new ArrayList<ThreadRecord>();
+    private IdentityHashMap<Object, QueueRecord> queues =
+	new IdentityHashMap<Object, QueueRecord>();
+    private ArrayList<QueueRecord> queueList = new ArrayList<QueueRecord>();
+
+    private Histogram contextSwitches = new Histogram();
+    private long switchStartNanos = 0;
+
+    private TreeMap<String, Histogram> interrupts =
+	new TreeMap<String, Histogram>();
+}
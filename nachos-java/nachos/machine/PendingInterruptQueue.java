@@ -0,0 +1,220 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+
+/**
+ * A priority queue of pending interrupts, ordered by the time each interrupt
+ * is due and then by a unique id, so that interrupts scheduled for the same
+ * time occur in the order they were scheduled.
+ *
+ * <p>
+ * The queue is a 4-ary heap kept in parallel arrays, so adding an interrupt
+ * allocates nothing (except when the arrays grow) and comparisons only look
+ * at primitive <tt>long</tt> keys.
+ */
+public final class PendingInterruptQueue {
+    /**
+     * Allocate a new, empty pending interrupt queue.
+     */
+    public PendingInterruptQueue() {
+	time = new long[initialCapacity];
+	id = new long[initialCapacity];
+	type = new String[initialCapacity];
+	handler = new Runnable[initialCapacity];
+    }
+
+    /**
+     * Allocate a new pending interrupt queue holding the same interrupts as
+     * an existing one.
+     *
+     * @param	queue	the queue to copy.
+     */
+    public PendingInterruptQueue(PendingInterruptQueue queue) {
+	time = queue.time.clone();
+	id = queue.id.clone();
+	type = queue.type.clone();
+	handler = queue.handler.clone();
+	size = queue.size;
+    }
+
+    /**
+     * Test whether this queue is empty.
+     *
+     * @return	<tt>true</tt> if no interrupts are pending.
+     */
+    public boolean isEmpty() {
+	return size == 0;
+    }
+
+    /**
+     * Return the number of pending interrupts.
+     *
+     * @return	the number of pending interrupts.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Add an interrupt to this queue.
+     *
+     * @param	when	the time at which the interrupt is due.
+     * @param	id	a unique id, used to order interrupts due at the same
+     *			time.
+     * @param	type	a name for the type of the interrupt.
+     * @param	handler	the interrupt handler to call.
+     */
+    public void add(long when, long id, String type, Runnable handler) {
+	if (size == time.length)
+	    grow();
+
+	siftUp(size++, when, id, type, handler);
+    }
+
+    /**
+     * Return the time at which the earliest interrupt is due. The queue must
+     * not be empty.
+     *
+     * @return	the time of the earliest interrupt.
+     */
+    public long firstTime() {
+	Lib.assertTrue(size > 0);
+	return time[0];
+    }
+
+    /**
+     * Return the id of the earliest interrupt. The queue must not be empty.
+     *
+     * @return	the id of the earliest interrupt.
+     */
+    public long firstId() {
+	Lib.assertTrue(size > 0);
+	return id[0];
+    }
+
+    /**
+     * Return the type of the earliest interrupt. The queue must not be empty.
+     *
+     * @return	the type of the earliest interrupt.
+     */
+    public String firstType() {
+	Lib.assertTrue(size > 0);
+	return type[0];
+    }
+
+    /**
+     * Return the handler of the earliest interrupt. The queue must not be
+     * empty.
+     *
+     * @return	the handler of the earliest interrupt.
+     */
+    public Runnable firstHandler() {
+	Lib.assertTrue(size > 0);
+	return handler[0];
+    }
+
+    /**
+     * Remove the earliest interrupt from this queue. The queue must not be
+     * empty.
+     */
+    public void removeFirst() {
+	Lib.assertTrue(size > 0);
+
+	int last = --size;
+	long lastTime = time[last], lastId = id[last];
+	String lastType = type[last];
+	Runnable lastHandler = handler[last];
+
+	type[last] = null;
+	handler[last] = null;
+
+	if (last > 0)
+	    siftDown(0, lastTime, lastId, lastType, lastHandler);
+    }
+
+    private static boolean before(long time1, long id1, long time2, long id2) {
+	return time1 < time2 || (time1 == time2 && id1 < id2);
+    }
+
+    /**
+     * Move the hole at <i>index</i> up until the specified interrupt can be
+     * stored in it.
+     */
+    private void siftUp(int index, long when, long id, String type,
+			Runnable handler) {
+	while (index > 0) {
+	    int parent = (index-1) / arity;
+	    if (!before(when, id, time[parent], this.id[parent]))
+		break;
+
+	    move(parent, index);
+	    index = parent;
+	}
+
+	set(index, when, id, type, handler);
+    }
+
+    /**
+     * Move the hole at <i>index</i> down until the specified interrupt can be
+     * stored in it.
+     */
+    private void siftDown(int index, long when, long id, String type,
+			  Runnable handler) {
+	while (true) {
+	    int first = index*arity + 1;
+	    if (first >= size)
+		break;
+
+	    // find the earliest child
+	    int child = first;
+	    int end = Math.min(first + arity, size);
+	    for (int i=first+1; i<end; i++) {
+		if (before(time[i], this.id[i], time[child], this.id[child]))
+		    child = i;
+	    }
+
+	    if (!before(time[child], this.id[child], when, id))
+		break;
+
+	    move(child, index);
+	    index = child;
+	}
+
+	set(index, when, id, type, handler);
+    }
+
+    private void move(int from, int to) {
+	time[to] = time[from];
+	id[to] = id[from];
+	type[to] = type[from];
+	handler[to] = handler[from];
+    }
+
+    private void set(int index, long when, long id, String type,
+		     Runnable handler) {
+	time[index] = when;
+	this.id[index] = id;
+	this.type[index] = type;
+	this.handler[index] = handler;
+    }
+
+    private void grow() {
+	int capacity = time.length * 2;
+
+	time = Arrays.copyOf(time, capacity);
+	id = Arrays.copyOf(id, capacity);
+	type = Arrays.copyOf(type, capacity);
+	handler = Arrays.copyOf(handler, capacity);
+    }
+
+    private static final int arity = 4;
+    private static final int initialCapacity = 16;
+
+    private long[] time;
+    private long[] id;
+    private String[] type;
+    private Runnable[] handler;
+    private int size = 0;
+}
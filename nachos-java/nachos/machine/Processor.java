@@ -4,6 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -18,6 +21,21 @@ import nachos.security.*;
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ *
+ * <p>
+ * Instructions are executed by one of two engines, selected by the
+ * <tt>Processor.engine</tt> configuration key. The default
+ * <tt>interpreter</tt> engine executes one instruction at a time. The
+ * <tt>block</tt> engine executes straight-line runs of instructions (basic
+ * blocks) as prebuilt chains of operations and charges their ticks all at
+ * once, with exactly the same results as the interpreter.
+ *
+ * <p>
+ * If the machine simulates several processors (see <tt>Interrupt</tt>),
+ * they share this object and its memory, but each has registers and a page
+ * table pointer or TLB of its own. Those of the processor that is running are
+ * the ones this API reads and writes; the machine swaps them in when it
+ * switches processors.
  */
 public final class Processor {
     /**
@@ -46,15 +64,118 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodedPages = new Decoded[numPhysPages][];
+
+	String engine = Config.getString("Processor.engine", "interpreter");
+	if (engine.equals("block")) {
+	    usingBlockEngine = true;
+	    blockPages = new Block[numPhysPages][];
+	}
+	else {
+	    Lib.assertTrue(engine.equals("interpreter"),
+			   "unknown Processor.engine: " + engine);
+	    usingBlockEngine = false;
+	}
 
 	if (usingTLB) {
+	    if (Config.getBoolean("Processor.variableTLB", false)) {
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+		tlbAssociativity =
+		    Config.getInteger("Processor.tlbAssociativity", tlbSize);
+		hashedTLB = Config.getBoolean("Processor.hashedTLB", false);
+	    }
+	    else {
+		tlbAssociativity = tlbSize;
+	    }
+
+	    Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0 &&
+			   tlbSize % tlbAssociativity == 0,
+			   "Processor.tlbAssociativity must divide " +
+			   "Processor.tlbSize");
+	    // an instruction and the data it loads or stores may be in pages
+	    // that map to the same set, and both must be in the TLB at once
+	    Lib.assertTrue(tlbAssociativity >= 2,
+			   "Processor.tlbAssociativity must be at least 2");
+	    numTLBSets = tlbSize / tlbAssociativity;
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    if (hashedTLB) {
+		int numBuckets = Integer.highestOneBit(2*tlbSize - 1) * 2;
+		tlbBuckets = new int[numBuckets];
+		Arrays.fill(tlbBuckets, -1);
+		tlbChain = new int[tlbSize];
+	    }
 	}
 	else {
 	    translations = null;
 	}
+
+	int numProcessors = Machine.interrupt().getNumProcessors();
+	if (numProcessors > 1) {
+	    // the first processor's state is saved when it first stops running
+	    processorStates = new ProcessorState[numProcessors];
+	    processorStates[0] = new ProcessorState();
+	    for (int i=1; i<numProcessors; i++)
+		processorStates[i] = newProcessorState();
+	}
+    }
+
+    /**
+     * Return the state of a processor that has not run yet: cleared
+     * registers, and no page table or an empty TLB.
+     */
+    private ProcessorState newProcessorState() {
+	ProcessorState state = new ProcessorState();
+	state.registers = new int[numUserRegisters];
+
+	if (usingTLB) {
+	    state.translations = new TranslationEntry[tlbSize];
+	    for (int i=0; i<tlbSize; i++)
+		state.translations[i] = new TranslationEntry();
+
+	    if (hashedTLB) {
+		state.tlbBuckets = new int[tlbBuckets.length];
+		Arrays.fill(state.tlbBuckets, -1);
+		state.tlbChain = new int[tlbSize];
+	    }
+	}
+
+	return state;
+    }
+
+    /**
+     * Save the state of the processor that was running, and load the state
+     * of the specified one. Translations remembered for the block engine
+     * belonged to the other processor, so they are dropped.
+     *
+     * @param	number	the number of the processor that now runs.
+     */
+    private void selectProcessor(int number) {
+	ProcessorState state = processorStates[processorNumber];
+	state.registers = registers;
+	state.loadTarget = loadTarget;
+	state.loadMask = loadMask;
+	state.loadValue = loadValue;
+	state.translations = translations;
+	state.asid = currentASID;
+	state.tlbBuckets = tlbBuckets;
+	state.tlbChain = tlbChain;
+
+	state = processorStates[number];
+	registers = state.registers;
+	loadTarget = state.loadTarget;
+	loadMask = state.loadMask;
+	loadValue = state.loadValue;
+	translations = state.translations;
+	currentASID = state.asid;
+	tlbBuckets = state.tlbBuckets;
+	tlbChain = state.tlbChain;
+
+	processorNumber = number;
+	translationGeneration++;
     }
 
     /**
@@ -83,6 +204,14 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * Instructions are run without any tick accounting until they have used
+     * up the user ticks left before the next pending interrupt, and are then
+     * charged all at once, so interrupts are delivered after exactly the same
+     * instruction as if every instruction were followed by a tick. An
+     * exception ends the run early: the instructions before it are charged,
+     * the exception is handled, and then the faulting instruction is charged.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -91,18 +220,138 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	// the interpreter prints per-instruction debugging output
+	if (usingBlockEngine && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble))
+	    runBlocks();
+
 	Instruction inst = new Instruction();
 	
 	while (true) {
+	    int budget = getTickBudget();
+	    int executed = 0;
+
+	    try {
+		do {
+		    inst.run();
+		    executed++;
+		} while (executed < budget);
+	    }
+	    catch (MipsException e) {
+		if (executed > 0)
+		    privilege.interrupt.tick(false, executed);
+
+		e.handle();
+		executed = 1;
+	    }
+
+	    privilege.interrupt.tick(false, executed);
+	}
+    }
+
+    /**
+     * Return the number of instructions that can be executed before a tick
+     * must be taken, which is at least 1.
+     *
+     * @return	the number of instructions to execute before the next tick.
+     */
+    private int getTickBudget() {
+	long ticks = privilege.interrupt.ticksUntilNextInterrupt();
+	
+	return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+					  ticks / Stats.UserTick));
+    }
+
+    /**
+     * Execute instructions a basic block at a time, charging ticks the same
+     * way as <tt>run()</tt>. Never returns.
+     *
+     * <p>
+     * A block is only entered at a sequential PC (not in a branch delay
+     * slot), and only as many of its instructions are run as fit in the tick
+     * budget. Anything that cannot start a block is single-stepped by the
+     * interpreter.
+     */
+    private void runBlocks() {
+	Instruction inst = new Instruction();
+
+	while (true) {
+	    int budget = getTickBudget();
+	    int executed = 0;
+
 	    try {
-		inst.run();
+		do {
+		    Block block = null;
+		    if (registers[regNextPC] == registers[regPC]+4)
+			block = getBlock(registers[regPC]);
+
+		    if (block == null) {
+			inst.run();
+			executed++;
+			continue;
+		    }
+
+		    int count = Math.min(block.ops.length, budget - executed);
+		    int epoch = blockEpoch;
+
+		    // stop early if a store may have changed the code
+		    for (int i=0; i<count && epoch == blockEpoch; i++) {
+			block.ops[i].run();
+			executed++;
+		    }
+		} while (executed < budget);
 	    }
 	    catch (MipsException e) {
+		// charge the instructions that completed before the exception
+		if (executed > 0)
+		    privilege.interrupt.tick(false, executed);
+
 		e.handle();
+		executed = 1;
 	    }
 
-	    privilege.interrupt.tick(false);
+	    privilege.interrupt.tick(false, executed);
+
+	    // the kernel may have changed a page table entry in place; it can
+	    // only change the TLB through writeTLBEntry() and setASID()
+	    if (!usingTLB)
+		translationGeneration++;
+	}
+    }
+
+    /**
+     * Return the basic block starting at virtual address <i>vaddr</i>,
+     * building it if it is not cached or if the code it was built from has
+     * changed.
+     *
+     * <p>
+     * The fetch of the first instruction is translated as by the
+     * interpreter, and a block is only checked against memory again after
+     * <tt>blockEpoch</tt> changes.
+     *
+     * @param	vaddr	the virtual address of the first instruction.
+     * @return		the block, or <tt>null</tt> if no block can start at
+     *			this instruction.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private Block getBlock(int vaddr) throws MipsException {
+	int paddr = translateCached(vaddr, 4, false);
+
+	Block[] page = blockPages[paddr / pageSize];
+	if (page == null)
+	    page = blockPages[paddr / pageSize] = new Block[pageSize / 4];
+
+	int index = (paddr % pageSize) / 4;
+	Block block = page[index];
+	if (block == null)
+	    page[index] = block = new Block(paddr);
+	else if (block.epoch != blockEpoch) {
+	    if (!block.isCurrent())
+		page[index] = block = new Block(paddr);
+	    block.epoch = blockEpoch;
 	}
+
+	return (block.ops.length > 0) ? block : null;
     }
 
     /**
@@ -175,6 +424,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	translationGeneration++;
     }
 
     /**
@@ -188,6 +438,70 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Set the address space identifier of the running address space. Only
+     * TLB entries with this identifier are used to translate addresses, so
+     * the TLB can hold entries for several address spaces at once, and need
+     * not be invalidated on a context switch.
+     *
+     * @param	asid	the address space identifier, from 0 to
+     *			<tt>numASIDs-1</tt>.
+     */
+    public void setASID(int asid) {
+	Lib.assertTrue(usingTLB);
+	Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+	currentASID = asid;
+	translationGeneration++;
+    }
+
+    /**
+     * Return the address space identifier set by the last call to
+     * <tt>setASID()</tt>, initially 0.
+     *
+     * @return	the current address space identifier.
+     */
+    public int getASID() {
+	Lib.assertTrue(usingTLB);
+
+	return currentASID;
+    }
+
+    /**
+     * Return the number of entries in each set of this processor's TLB. The
+     * entries of set <i>s</i> are numbered from
+     * <i>s</i><tt>*getTLBAssociativity()</tt> up.
+     *
+     * <p>
+     * Unless <tt>Processor.variableTLB</tt> is set, the TLB is fully
+     * associative: it is a single set of 4 entries. If it is set, the TLB has
+     * <tt>Processor.tlbSize</tt> entries (by default 4), in sets of
+     * <tt>Processor.tlbAssociativity</tt> (at least 2; by default, all of
+     * them), and if <tt>Processor.hashedTLB</tt> is set, a set is searched
+     * through a hash table on vpn instead of entry by entry. Hashing changes
+     * how long a lookup takes in real time, but not what it finds.
+     *
+     * @return	the number of entries in each set.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbAssociativity;
+    }
+
+    /**
+     * Return the TLB set that a translation for the specified virtual page
+     * must be written to. Only that set is searched for it.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the set number.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return tlbSetOf(vpn);
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -195,18 +509,36 @@ public final class Processor {
      * @return	the contents of the specified TLB entry.
      */
     public TranslationEntry readTLBEntry(int number) {
+	TranslationEntry entry = new TranslationEntry();
+	readTLBEntry(number, entry);
+
+	return entry;
+    }
+
+    /**
+     * Copy the specified TLB entry into an existing translation entry,
+     * without allocating a new one.
+     *
+     * @param	number	the index into the TLB.
+     * @param	entry	the translation entry to overwrite with the contents of
+     *			the specified TLB entry.
+     */
+    public void readTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
-	return new TranslationEntry(translations[number]);
+	entry.set(translations[number]);
     }
 
     /**
-     * Fill the specified TLB entry.
+     * Fill the specified TLB entry. The contents of <i>entry</i> are copied,
+     * so it may be reused afterwards.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * A valid entry must be written to the set that <tt>getTLBSet()</tt>
+     * returns for its virtual page. Within its set, the location of an entry
+     * does not affect anything. The entry is only used while its
+     * <tt>asid</tt> is the one last passed to <tt>setASID()</tt>.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -214,8 +546,88 @@ public final class Processor {
     public void writeTLBEntry(int number, TranslationEntry entry) {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
+	Lib.assertTrue(!entry.valid ||
+		       number / tlbAssociativity == tlbSetOf(entry.vpn),
+		       "TLB entry written outside its set");
+	Lib.assertTrue(entry.asid >= 0 && entry.asid < numASIDs);
+
+	// only translations of the pages this entry mapped before and maps now
+	// can change
+	if (translations[number].valid) {
+	    if (hashedTLB)
+		unhashTLBEntry(number);
+	    forgetTranslation(translations[number].vpn);
+	}
+
+	translations[number].set(entry);
+
+	if (entry.valid) {
+	    if (hashedTLB)
+		hashTLBEntry(number);
+	    forgetTranslation(entry.vpn);
+	}
+    }
+
+    private int tlbSetOf(int vpn) {
+	return (numTLBSets == 1) ? 0 : Math.floorMod(vpn, numTLBSets);
+    }
+
+    private int tlbBucketOf(int vpn, int asid) {
+	return (vpn ^ (vpn >>> 16) ^ (asid << 3)) & (tlbBuckets.length-1);
+    }
+
+    private void hashTLBEntry(int number) {
+	int bucket = tlbBucketOf(translations[number].vpn,
+				 translations[number].asid);
+
+	tlbChain[number] = tlbBuckets[bucket];
+	tlbBuckets[bucket] = number;
+    }
+
+    private void unhashTLBEntry(int number) {
+	int bucket = tlbBucketOf(translations[number].vpn,
+				 translations[number].asid);
+
+	if (tlbBuckets[bucket] == number) {
+	    tlbBuckets[bucket] = tlbChain[number];
+	    return;
+	}
+
+	for (int i=tlbBuckets[bucket]; i != -1; i=tlbChain[i]) {
+	    if (tlbChain[i] == number) {
+		tlbChain[i] = tlbChain[number];
+		return;
+	    }
+	}
 
-	translations[number] = new TranslationEntry(entry);
+	Lib.assertNotReached("TLB entry missing from its hash chain");
+    }
+
+    /**
+     * Return the valid TLB entry for the specified virtual page in the
+     * current address space, or <tt>null</tt> if there is none. Only the set
+     * the page maps to is searched, through the hash chain for the page if
+     * the TLB is hashed.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	if (hashedTLB) {
+	    int bucket = tlbBucketOf(vpn, currentASID);
+	    for (int i=tlbBuckets[bucket]; i != -1; i=tlbChain[i]) {
+		if (translations[i].vpn == vpn &&
+		    translations[i].asid == currentASID)
+		    return translations[i];
+	    }
+	    return null;
+	}
+
+	int first = tlbSetOf(vpn) * tlbAssociativity;
+	for (int i=first; i<first+tlbAssociativity; i++) {
+	    if (translations[i].valid && translations[i].vpn == vpn &&
+		translations[i].asid == currentASID)
+		return translations[i];
+	}
+
+	return null;
     }
 
     /**
@@ -232,9 +644,19 @@ public final class Processor {
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
      *
+     * <p>
+     * Code may be written directly into this array. Each cached decoded
+     * instruction is checked against the word currently in memory before it
+     * is used, and the block engine checks its blocks again after every call
+     * to this method, so such writes are seen by the processor as long as the
+     * array is obtained from this method rather than kept from an earlier
+     * call.
+     *
      * @return	the main memory array.
      */
     public byte[] getMemory() {
+	blockEpoch++;
+	
 	return mainMemory;
     }
 
@@ -322,14 +744,9 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, look through the TLB set for a matching vpn and asid
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = lookupTLB(vpn);
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
@@ -362,6 +779,53 @@ public final class Processor {
 	return paddr;
     }
 
+    /**
+     * Translate a virtual address exactly as <tt>translate()</tt> does, for
+     * the block engine. Since address translation can only change while the
+     * kernel runs, a successful translation is remembered until the kernel
+     * may have changed it (see <tt>translationGeneration</tt>), so that later
+     * references to the same page skip the page table or TLB lookup (the used
+     * and dirty bits it would set are already set).
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return		the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translateCached(int vaddr, int size, boolean writing)
+	throws MipsException {
+	int vpn = pageFromAddress(vaddr);
+	int offset = offsetFromAddress(vaddr);
+	int slot = vpn & (translationCacheSize-1);
+
+	if ((vaddr & (size-1)) == 0 &&
+	    cachedGeneration[slot] == translationGeneration &&
+	    cachedVPN[slot] == vpn && (cachedWritable[slot] || !writing))
+	    return cachedPageBase[slot] + offset;
+
+	int paddr = translate(vaddr, size, writing);
+
+	cachedGeneration[slot] = translationGeneration;
+	cachedVPN[slot] = vpn;
+	cachedPageBase[slot] = paddr - offset;
+	cachedWritable[slot] = writing;
+	
+	return paddr;
+    }
+
+    /**
+     * Drop the translation <tt>translateCached()</tt> remembers for a virtual
+     * page, if any.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    private void forgetTranslation(int vpn) {
+	int slot = vpn & (translationCacheSize-1);
+	if (cachedVPN[slot] == vpn)
+	    cachedGeneration[slot] = translationGeneration-1;
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -388,6 +852,87 @@ public final class Processor {
 	return value;
     }
     
+    /**
+     * Read the instruction at <i>vaddr</i> and return it in decoded form. The
+     * word is translated and read exactly as by <tt>readMem()</tt>, but the
+     * decoding is taken from the cache for the physical page holding it,
+     * unless the cached entry is missing or was decoded from a different
+     * word.
+     *
+     * @param	vaddr	the virtual address of the instruction.
+     * @return		the decoded instruction.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private Decoded readInstruction(int vaddr) throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+			       + ", size=4");
+
+	int paddr = translate(vaddr, 4, false);
+	Decoded inst = decodedAt(paddr);
+
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\t\tvalue read=0x" +
+			       Lib.toHexString(inst.value, 8));
+
+	return inst;
+    }
+
+    /**
+     * Return the decoded form of the word at physical address <i>paddr</i>,
+     * decoding it if it is not cached or if the cached entry was decoded from
+     * a different word.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @return		the decoded instruction.
+     */
+    private Decoded decodedAt(int paddr) {
+	int value = Lib.bytesToInt(mainMemory, paddr);
+
+	Decoded[] page = decodedPages[paddr / pageSize];
+	if (page == null)
+	    page = decodedPages[paddr / pageSize] = new Decoded[pageSize / 4];
+
+	int index = (paddr % pageSize) / 4;
+	Decoded inst = page[index];
+	if (inst == null || inst.value != value)
+	    page[index] = inst = new Decoded(value);
+
+	return inst;
+    }
+
+    /**
+     * Drop the cached decoding of the word containing physical address
+     * <i>paddr</i>.
+     *
+     * @param	paddr	the physical address that was written.
+     */
+    private void invalidateDecoded(int paddr) {
+	Decoded[] page = decodedPages[paddr / pageSize];
+	if (page != null)
+	    page[(paddr % pageSize) / 4] = null;
+
+	if (usingBlockEngine && blockPages[paddr / pageSize] != null)
+	    blockEpoch++;
+    }
+
+    /**
+     * Drop every cached decoded instruction for the specified physical page.
+     * Called when the whole page is overwritten, such as when a COFF section
+     * page is loaded into it.
+     *
+     * @param	ppn	the physical page that was overwritten.
+     */
+    void invalidateDecodedPage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+	if (usingBlockEngine) {
+	    blockPages[ppn] = null;
+	    blockEpoch++;
+	}
+    }
+    
     /**
      * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
      * starting at <i>vaddr</i>.
@@ -406,8 +951,10 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+	
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+	invalidateDecoded(paddr);
     }
 
     /**
@@ -541,6 +1088,21 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** The address space identifier TLB entries must have to be used. */
+    private int currentASID = 0;
+    /** Number of TLB entries in each set. */
+    private int tlbAssociativity;
+    /** Number of TLB sets. */
+    private int numTLBSets;
+    /**
+     * <tt>true</tt> if valid TLB entries are also kept in hash chains keyed
+     * on vpn, so that a lookup does not scan its whole set.
+     */
+    private boolean hashedTLB = false;
+    /** The first TLB entry in each hash chain, or -1. */
+    private int[] tlbBuckets;
+    /** The next TLB entry in the same hash chain, or -1. */
+    private int[] tlbChain;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -549,16 +1111,65 @@ public final class Processor {
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
+    /** Number of address space identifiers a TLB entry can be tagged with. */
+    public static final int numASIDs = 256;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Decoded instructions for each physical page, indexed by word. A page's
+     * array is allocated the first time an instruction is fetched from it.
+     */
+    private Decoded[][] decodedPages;
+
+    /** <tt>true</tt> if using the basic block engine. */
+    private boolean usingBlockEngine;
+    /**
+     * Basic blocks for each physical page, indexed by the word of their first
+     * instruction. A page's array is allocated when a block first starts in
+     * it.
+     */
+    private Block[][] blockPages;
+    /** Incremented whenever memory holding blocks may have been written. */
+    private int blockEpoch = 0;
+    /**
+     * Recent translations made by the block engine, indexed by the low bits
+     * of the virtual page number. An entry is only valid if its generation
+     * matches <tt>translationGeneration</tt>, which changes whenever the
+     * page table or the address space identifier is set, and, without a TLB,
+     * on every tick, since the kernel changes page table entries in place.
+     * Setting a TLB entry only drops the translations of the pages it maps.
+     * A thread switched out in the middle of a tick leaves its translations
+     * behind for the next thread to run, which may be a new process that has
+     * not ticked yet.
+     */
+    private static final int translationCacheSize = 16;
+    private int translationGeneration = 1;
+    private int[] cachedGeneration = new int[translationCacheSize];
+    private int[] cachedVPN = new int[translationCacheSize];
+    private int[] cachedPageBase = new int[translationCacheSize];
+    private boolean[] cachedWritable = new boolean[translationCacheSize];
+    /**
+     * The interpreter used by block operations for uncommon instructions.
+     * Only one thread runs user code at a time, and its state is not needed
+     * once an instruction completes, so it can be shared.
+     */
+    private Instruction interpreter = new Instruction();
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /** The number of the simulated processor whose state is loaded. */
+    private int processorNumber = 0;
+    /**
+     * The state of each simulated processor, kept here while another one
+     * runs, or <tt>null</tt> if there is only one processor.
+     */
+    private ProcessorState[] processorStates = null;
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
@@ -567,10 +1178,28 @@ public final class Processor {
 	public void flushPipe() {
 	    finishLoad();
 	}
+
+	public void selectProcessor(int number) {
+	    Processor.this.selectProcessor(number);
+	}
+    }
+
+    /**
+     * The state each simulated processor has of its own: its registers, the
+     * delayed load in progress, and its page table or TLB.
+     */
+    private static class ProcessorState {
+	int[] registers;
+	int loadTarget, loadMask, loadValue;
+	TranslationEntry[] translations;
+	int asid;
+	int[] tlbBuckets, tlbChain;
     }
 
     private class MipsException extends Exception {
 	public MipsException(int cause) {
+	    // thrown on every TLB miss and system call, so skip the stack trace
+	    super(null, null, false, false);
 	    Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
 	    this.cause = cause;
@@ -616,6 +1245,16 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	public void run(Decoded decoded) throws MipsException {
+	    // already fetched
+	    this.decoded = decoded;
+	    value = decoded.value;
+
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +1265,47 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    decoded = readInstruction(registers[regPC]);
+	    value = decoded.value;
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    // the fields that depend only on the instruction word come from
+	    // the decoded instruction cache
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
 	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
+	    size = decoded.size;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
+	    dstReg = decoded.dstReg;
 
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1660,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1672,362 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * so they can be decoded once and reused every time the word is executed.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int signedImm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offset uses the sign-extended immediate
+	    branchOffset = signedImm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg, branchOffset;
+    }
+
+    /**
+     * A run of instructions that are executed one after another: it ends
+     * after the delay slot of the first branch or jump, at the first syscall
+     * or illegal instruction, or at the end of the page.
+     */
+    private class Block {
+	Block(int paddr) {
+	    this.paddr = paddr;
+
+	    int pageEnd = (paddr / pageSize + 1) * pageSize;
+	    ArrayList<Op> list = new ArrayList<Op>();
+
+	    for (int p=paddr; p<pageEnd; p+=4) {
+		Decoded inst = decodedAt(p);
+
+		if (Lib.test(Mips.BRANCH, inst.flags)) {
+		    // include the delay slot, unless it is on the next page
+		    if (p+4 < pageEnd) {
+			list.add(newOp(inst));
+			list.add(newOp(decodedAt(p+4)));
+		    }
+		    break;
+		}
+
+		list.add(newOp(inst));
+
+		if (inst.operation == Mips.SYSCALL ||
+		    inst.operation == Mips.UNIMPL ||
+		    inst.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    ops = list.toArray(new Op[list.size()]);
+	    words = Arrays.copyOfRange(mainMemory, paddr, paddr + ops.length*4);
+	    epoch = blockEpoch;
+	}
+
+	/**
+	 * Test whether memory still holds the instructions this block was
+	 * built from.
+	 */
+	boolean isCurrent() {
+	    return Arrays.equals(mainMemory, paddr, paddr + words.length,
+				 words, 0, words.length);
+	}
+
+	final int paddr;
+	final Op[] ops;
+	final byte[] words;
+	/** The epoch in which this block was last known to match memory. */
+	int epoch;
+    }
+
+    /**
+     * Create the operation that executes the specified instruction. The
+     * common instructions get their own operations; anything else is run
+     * through the interpreter.
+     */
+    private Op newOp(Decoded inst) {
+	switch (inst.operation) {
+	case Mips.ADD:
+	case Mips.SUB:
+	    if (Lib.test(Mips.OVERFLOW, inst.flags))
+		return new InterpretOp(inst);
+	    return new AluOp(inst);
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	case Mips.SLT:
+	case Mips.AND:
+	case Mips.OR:
+	case Mips.NOR:
+	case Mips.XOR:
+	case Mips.LUI:
+	case Mips.MFLO:
+	case Mips.MFHI:
+	    return new AluOp(inst);
+	case Mips.JUMP:
+	case Mips.BEQ:
+	case Mips.BNE:
+	case Mips.BLEZ:
+	case Mips.BGTZ:
+	case Mips.BLTZ:
+	case Mips.BGEZ:
+	    return new BranchOp(inst);
+	case Mips.LOAD:
+	    return new LoadOp(inst);
+	case Mips.STORE:
+	    return new StoreOp(inst);
+	default:
+	    return new InterpretOp(inst);
+	}
+    }
+
+    /**
+     * A single instruction of a basic block. Running it has exactly the same
+     * effect as running the instruction in the interpreter.
+     */
+    private abstract class Op {
+	Op(Decoded inst) {
+	    this.inst = inst;
+	}
+
+	abstract void run() throws MipsException;
+
+	final Decoded inst;
+    }
+
+    private class InterpretOp extends Op {
+	InterpretOp(Decoded inst) {
+	    super(inst);
+	}
+
+	void run() throws MipsException {
+	    interpreter.run(inst);
+	}
+    }
+
+    private class AluOp extends Op {
+	AluOp(Decoded inst) {
+	    super(inst);
+	}
+
+	void run() {
+	    long src1, src2, dst;
+
+	    if (Lib.test(Mips.SRC1SH, inst.flags))
+		src1 = inst.sh;
+	    else
+		src1 = registers[inst.rs];
+
+	    if (Lib.test(Mips.SRC2IMM, inst.flags))
+		src2 = inst.imm;
+	    else
+		src2 = registers[inst.rt];
+
+	    if (Lib.test(Mips.UNSIGNED, inst.flags)) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    switch (inst.operation) {
+	    case Mips.ADD:
+		dst = src1 + src2;
+		break;
+	    case Mips.SUB:
+		dst = src1 - src2;
+		break;
+	    case Mips.SLL:
+		dst = src2 << (src1&0x1F);
+		break;
+	    case Mips.SRA:
+		dst = src2 >> (src1&0x1F);
+		break;
+	    case Mips.SRL:
+		dst = src2 >>> (src1&0x1F);
+		break;
+	    case Mips.SLT:
+		dst = (src1<src2) ? 1 : 0;
+		break;
+	    case Mips.AND:
+		dst = src1 & src2;
+		break;
+	    case Mips.OR:
+		dst = src1 | src2;
+		break;
+	    case Mips.NOR:
+		dst = ~(src1 | src2);
+		break;
+	    case Mips.XOR:
+		dst = src1 ^ src2;
+		break;
+	    case Mips.LUI:
+		dst = inst.imm << 16;
+		break;
+	    case Mips.MFLO:
+		dst = registers[regLo];
+		break;
+	    case Mips.MFHI:
+		dst = registers[regHi];
+		break;
+	    default:
+		Lib.assertNotReached();
+		return;
+	    }
+
+	    finishLoad();
+
+	    if (inst.dstReg != 0)
+		registers[inst.dstReg] = (int) dst;
+
+	    advancePC(registers[regNextPC]+4);
+	}
+    }
+
+    private class BranchOp extends Op {
+	BranchOp(Decoded inst) {
+	    super(inst);
+	}
+
+	void run() {
+	    int nextPC = registers[regNextPC]+4;
+	    int jtarget;
+	    boolean branch;
+
+	    if (inst.format == Mips.RFMT)
+		jtarget = registers[inst.rs];
+	    else if (inst.format == Mips.IFMT)
+		jtarget = registers[regNextPC] + inst.branchOffset;
+	    else
+		jtarget = (registers[regNextPC]&0xF0000000) | (inst.target<<2);
+
+	    switch (inst.operation) {
+	    case Mips.BEQ:
+		branch = (registers[inst.rs] == registers[inst.rt]);
+		break;
+	    case Mips.BNE:
+		branch = (registers[inst.rs] != registers[inst.rt]);
+		break;
+	    case Mips.BGEZ:
+		branch = (registers[inst.rs] >= 0);
+		break;
+	    case Mips.BGTZ:
+		branch = (registers[inst.rs] > 0);
+		break;
+	    case Mips.BLEZ:
+		branch = (registers[inst.rs] <= 0);
+		break;
+	    case Mips.BLTZ:
+		branch = (registers[inst.rs] < 0);
+		break;
+	    default:
+		branch = true;
+		break;
+	    }
+
+	    finishLoad();
+
+	    if (Lib.test(Mips.LINK, inst.flags) && inst.dstReg != 0)
+		registers[inst.dstReg] = nextPC;
+
+	    if (branch)
+		nextPC = jtarget;
+
+	    advancePC(nextPC);
+	}
+    }
+
+    private class LoadOp extends Op {
+	LoadOp(Decoded inst) {
+	    super(inst);
+	}
+
+	void run() throws MipsException {
+	    int paddr = translateCached(registers[inst.rs] + inst.imm,
+					inst.size, false);
+	    int value = Lib.bytesToInt(mainMemory, paddr, inst.size);
+
+	    if (!Lib.test(Mips.UNSIGNED, inst.flags))
+		value = Lib.extend(value, 0, inst.size*8);
+
+	    delayedLoad(inst.dstReg, value, 0xFFFFFFFF);
+
+	    advancePC(registers[regNextPC]+4);
+	}
+    }
+
+    private class StoreOp extends Op {
+	StoreOp(Decoded inst) {
+	    super(inst);
+	}
+
+	void run() throws MipsException {
+	    int paddr = translateCached(registers[inst.rs] + inst.imm,
+					inst.size, true);
+	    Lib.bytesFromInt(mainMemory, paddr, inst.size, registers[inst.rt]);
+	    invalidateDecoded(paddr);
+
+	    finishLoad();
+
+	    advancePC(registers[regNextPC]+4);
+	}
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -29,19 +29,32 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numProcessors > 1) {
+	    System.out.println("Processors: " + numProcessors
+			       + ", switches " + numProcessorSwitches);
+	}
+	if (numDeadlines > 0) {
+	    System.out.println("Deadlines: met " +
+			       (numDeadlines - numDeadlineMisses)
+			       + ", missed " + numDeadlineMisses
+			       + ", max lateness " + maxDeadlineLateness);
+	}
     }
 
     /**
      * The total amount of simulated time that has passed since Nachos
-     * started.
+     * started. With several simulated processors, this is the clock of the
+     * processor that is running.
      */
     public long totalTicks = 0;
     /**
-     * The total amount of simulated time that Nachos has spent in kernel mode.
+     * The total amount of simulated time that Nachos has spent in kernel mode,
+     * summed over the simulated processors.
      */
     public long kernelTicks = 0;
     /**
-     * The total amount of simulated time that Nachos has spent in user mode.
+     * The total amount of simulated time that Nachos has spent in user mode,
+     * summed over the simulated processors.
      */
     public long userTicks = 0;
 
@@ -61,6 +74,19 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of deadlines recorded through the timer. */
+    public int numDeadlines = 0;
+    /** The number of those deadlines that were missed. */
+    public int numDeadlineMisses = 0;
+    /** The most ticks by which any deadline was missed. */
+    public long maxDeadlineLateness = 0;
+    /** The number of simulated processors. */
+    public int numProcessors = 1;
+    /**
+     * The number of times the machine has switched from one simulated
+     * processor to the next.
+     */
+    public long numProcessorSwitches = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -0,0 +1,145 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A paging device: a fixed number of page-sized slots of backing store for
+ * pages of physical memory. It is enabled by the <tt>Machine.swap</tt>
+ * configuration key, in which case <tt>Machine.swap()</tt> returns it.
+ *
+ * <p>
+ * The slots are kept in a file that is mapped into memory, so a page is
+ * moved between main memory and its slot with one bulk copy and no system
+ * call. Each device creates a new file of its own, so that runs started
+ * from the same directory, or in the same JVM, never share one.
+ * <tt>SwapDevice.file</tt> gives the start of its name (by default
+ * <tt>nachos</tt>, in the directory Nachos is run from), or a directory to
+ * create it in. The file holds <tt>SwapDevice.pages</tt> slots (by default
+ * 256), and is removed as soon as it is mapped, so its contents never
+ * outlive the run.
+ *
+ * <p>
+ * Transfers take no simulated time, but are counted as disk reads and writes
+ * in <tt>Stats</tt>. Which slots are in use is up to the kernel.
+ */
+public final class SwapDevice {
+    /**
+     * Allocate a new swap device, and map its file.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public SwapDevice(Privilege privilege) {
+	System.out.print(" swap");
+
+	this.privilege = privilege;
+
+	numSlots = Config.getInteger("SwapDevice.pages", 256);
+	Lib.assertTrue(numSlots > 0);
+
+	final File name = new File(Config.getString("SwapDevice.file",
+						    "nachos"));
+
+	privilege.doPrivileged(new Runnable() {
+		public void run() { map(name); }
+	    });
+    }
+
+    /**
+     * Create a new swap file, named after the specified prefix or in the
+     * specified directory, and map it.
+     */
+    private void map(File name) {
+	Lib.assertTrue(name.isDirectory() || name.getName().length() >= 3,
+		       "SwapDevice.file must name a directory, or be at least " +
+		       "three characters long");
+
+	File file = null;
+
+	try {
+	    if (name.isDirectory()) {
+		file = File.createTempFile("nachos", ".swap", name);
+	    }
+	    else {
+		File dir = name.getAbsoluteFile().getParentFile();
+		file = File.createTempFile(name.getName(), ".swap", dir);
+	    }
+
+	    RandomAccessFile swapFile = new RandomAccessFile(file, "rw");
+	    swapFile.setLength((long) numSlots * pageSize);
+
+	    slots = swapFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					      (long) numSlots * pageSize);
+	    swapFile.close();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("could not map swap file " +
+				 (file != null ? file : name));
+	}
+
+	// the mapping stays valid after the file is gone
+	if (!file.delete())
+	    file.deleteOnExit();
+    }
+
+    /**
+     * Return the number of slots on this device.
+     *
+     * @return	the number of page-sized slots.
+     */
+    public int getNumSlots() {
+	return numSlots;
+    }
+
+    /**
+     * Copy a slot into a page of physical memory.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to overwrite.
+     */
+    public void readPage(int slot, int ppn) {
+	Processor processor = Machine.processor();
+
+	Lib.assertTrue(slot >= 0 && slot < numSlots);
+	Lib.assertTrue(ppn >= 0 && ppn < processor.getNumPhysPages());
+
+	slots.position(slot*pageSize);
+	slots.get(processor.getMemory(), ppn*pageSize, pageSize);
+	processor.invalidateDecodedPage(ppn);
+
+	privilege.stats.numDiskReads++;
+    }
+
+    /**
+     * Copy a page of physical memory into a slot.
+     *
+     * @param	slot	the slot to overwrite.
+     * @param	ppn	the physical page to write.
+     */
+    public void writePage(int slot, int ppn) {
+	Processor processor = Machine.processor();
+
+	Lib.assertTrue(slot >= 0 && slot < numSlots);
+	Lib.assertTrue(ppn >= 0 && ppn < processor.getNumPhysPages());
+
+	slots.position(slot*pageSize);
+	slots.put(processor.getMemory(), ppn*pageSize, pageSize);
+
+	privilege.stats.numDiskWrites++;
+    }
+
+    private Privilege privilege;
+
+    private int numSlots;
+    private MappedByteBuffer slots;
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -5,7 +5,13 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +20,49 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * The kind of JVM thread, and the way control is handed from one TCB to the
+ * next, are chosen by the <tt>TCB.backend</tt> configuration key. The
+ * <tt>platform</tt> backend (the default) gives each TCB an ordinary Java
+ * thread, and hands off control with <tt>wait()</tt> and <tt>notify()</tt>
+ * on the monitor bound to each TCB. The <tt>virtual</tt> backend gives each
+ * TCB a virtual thread, all sharing one carrier thread, and hands off
+ * control by setting the next TCB's <tt>running</tt> flag and unparking its
+ * thread, without taking any locks. Virtual threads are cheap enough to run
+ * tens of thousands of TCBs; on a JVM without them, the <tt>virtual</tt>
+ * backend falls back to platform threads but still uses the lock-free
+ * handoff. Since there is only one carrier thread, a virtual thread that
+ * blocks while pinned to it, for example by context switching inside a
+ * <i>synchronized</i> block, leaves no carrier for the next TCB, and
+ * deadlocks the whole machine.
+ *
+ * <p>
+ * The <tt>continuation</tt> backend does away with handoffs between Java
+ * threads altogether. Every TCB is a JDK continuation, and all of them run on
+ * the Java thread that started the first TCB: a context switch just records
+ * the next TCB and yields, and that thread resumes the next TCB's
+ * continuation where it last yielded. The continuation API is internal to the
+ * JDK, so this backend needs JDK 21 or later and the JVM option
+ * <tt>--add-exports java.base/jdk.internal.vm=ALL-UNNAMED</tt>; otherwise it
+ * falls back to the <tt>virtual</tt> backend. A continuation cannot yield
+ * while it holds a monitor, so a context switch inside a <i>synchronized</i>
+ * block fails outright with this backend. Since every TCB shares one Java
+ * thread, a TCB that context switches inside <tt>doPrivileged()</tt> also
+ * leaves the next TCB privileged. That would defeat the security manager, so
+ * when <tt>NachosSecurityManager.fullySecure</tt> is set, this backend is not
+ * used and the <tt>virtual</tt> backend is used instead.
+ *
+ * <p>
+ * When Nachos is hosted (see <tt>Machine.runHosted()</tt>), it cannot exit the
+ * JVM. Instead, <tt>halt()</tt> wakes up every TCB and makes it unwind its
+ * Java thread, as if it were being destroyed. Hosted runs use platform threads
+ * in place of virtual threads, since the scheduler for virtual threads is
+ * shared by the whole JVM and limited to one carrier thread.
+ *
+ * <p>
+ * <tt>TCB.maxThreads</tt> raises or lowers the limit on the number of TCBs in
+ * existence.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +89,142 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+
+	String backend = Config.getString("TCB.backend", "platform");
+	if (backend.equals("continuation") &&
+	    Config.getBoolean("NachosSecurityManager.fullySecure", false)) {
+	    Lib.debug(dbgTCB, "fully secure, using virtual threads");
+	    backend = "virtual";
+	}
+
+	if (backend.equals("continuation")) {
+	    usingContinuations = findContinuations();
+	    if (!usingContinuations) {
+		Lib.debug(dbgTCB, "continuations unavailable, " +
+			  "using virtual threads");
+		backend = "virtual";
+	    }
+	}
+
+	if (backend.equals("virtual") && Machine.isHosted()) {
+	    Lib.debug(dbgTCB, "hosted, using platform threads");
+	    backend = "platform";
+	}
+
+	if (usingContinuations) {
+	    parkHandoff = false;
+	    virtualThreadFactory = null;
+	}
+	else if (backend.equals("virtual")) {
+	    parkHandoff = true;
+	    virtualThreadFactory = findVirtualThreadFactory();
+	    if (virtualThreadFactory == null)
+		Lib.debug(dbgTCB, "virtual threads unavailable, " +
+			  "using platform threads");
+	}
+	else {
+	    Lib.assertTrue(backend.equals("platform"),
+			   "unknown TCB.backend: " + backend);
+	    parkHandoff = false;
+	    virtualThreadFactory = null;
+	}
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual().factory()</tt> by reflection, so that
+     * Nachos still builds and runs on JVMs without virtual threads.
+     *
+     * <p>
+     * The scheduler for virtual threads is limited to a single carrier
+     * thread. Only one TCB runs at a time anyway, so a switch between TCBs
+     * never involves the OS scheduler. More importantly, the scheduler
+     * creates carrier threads on demand, from whichever thread starts or
+     * unparks a virtual thread, and the security manager will not let a
+     * Nachos thread do that. With one carrier, created when the first TCB
+     * starts, this never happens.
+     *
+     * <p>
+     * The scheduler is limited through system properties, which the JVM
+     * reads only once, when the first virtual thread anywhere in the JVM is
+     * created. Setting them has no effect if some other code has already
+     * created a virtual thread. If they were already set to anything else,
+     * they may have been read already, so virtual threads are not used.
+     *
+     * @return	a factory for virtual threads, or <tt>null</tt> if this JVM
+     *		cannot create them.
+     */
+    private static ThreadFactory findVirtualThreadFactory() {
+	if (!limitVirtualThreadScheduler("parallelism") ||
+	    !limitVirtualThreadScheduler("maxPoolSize")) {
+	    Lib.debug(dbgTCB, "virtual thread scheduler already configured");
+	    return null;
+	}
+
+	try {
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+	    return (ThreadFactory)
+		builderClass.getMethod("factory").invoke(builder);
+	}
+	catch (Exception e) {
+	    // missing before JDK 21, or a disabled preview feature
+	    return null;
+	}
+    }
+
+    /**
+     * Set a <tt>jdk.virtualThreadScheduler</tt> property to 1, unless it is
+     * already set to something else.
+     *
+     * @param	name	the name of the property, without the prefix.
+     * @return	<tt>true</tt> if the property is now 1.
+     */
+    private static boolean limitVirtualThreadScheduler(String name) {
+	String key = "jdk.virtualThreadScheduler." + name;
+	String value = System.getProperty(key);
+
+	if (value != null)
+	    return value.equals("1");
+
+	System.setProperty(key, "1");
+	return true;
+    }
+
+    /**
+     * Look up <tt>jdk.internal.vm.Continuation</tt> and its scope class by
+     * reflection, and keep method handles to create, run and yield
+     * continuations.
+     *
+     * @return	<tt>true</tt> if this JVM lets us use continuations.
+     */
+    private static boolean findContinuations() {
+	try {
+	    Class<?> scopeClass =
+		Class.forName("jdk.internal.vm.ContinuationScope");
+	    Class<?> continuationClass =
+		Class.forName("jdk.internal.vm.Continuation");
+
+	    MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	    continuationScope = scopeClass.getConstructor(String.class)
+		.newInstance("nachos");
+	    continuationConstructor = lookup.unreflectConstructor(
+		continuationClass.getConstructor(scopeClass, Runnable.class));
+	    continuationRun = lookup.unreflect(
+		continuationClass.getMethod("run"));
+	    continuationYield = lookup.unreflect(
+		continuationClass.getMethod("yield", scopeClass));
+
+	    return true;
+	}
+	catch (Exception e) {
+	    // missing before JDK 21, or jdk.internal.vm is not exported to us
+	    return false;
+	}
     }
     
     /**
@@ -66,7 +251,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -85,7 +270,25 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
+	if (!isFirstTCB && usingContinuations) {
+	    /* If this is not the first TCB, and TCBs are continuations, we
+	     * make a new continuation to run it on the current Java thread.
+	     * Starting it is just a context switch to the new TCB, after which
+	     * threadroot() wakes us up again as usual.
+	     */
+	    tcbTarget = new Runnable() {
+		    public void run() { threadroot(); }
+		};
+
+	    javaThread = Thread.currentThread();
+	    continuation = newContinuation(tcbTarget);
+
+	    currentTCB.running = false;
+
+	    scheduleContinuation(this);
+	    currentTCB.waitForInterrupt();
+	}
+	else if (!isFirstTCB) {
 	    /* If this is not the first TCB, we have to make a new Java thread
 	     * to run it. Creating Java threads is a privileged operation.
 	     */
@@ -94,7 +297,13 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() {
+			if (virtualThreadFactory != null)
+			    javaThread =
+				virtualThreadFactory.newThread(tcbTarget);
+			else
+			    javaThread = new Thread(tcbTarget);
+		    }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -108,6 +317,35 @@ public final class TCB {
 	    this.javaThread.start();
 	    currentTCB.waitForInterrupt();
 	}
+	else if (usingContinuations) {
+	    /* This is the first TCB, so the current Java thread becomes the
+	     * one that runs every TCB's continuation. Unless Nachos is hosted,
+	     * it never returns from runContinuations(); Nachos exits through
+	     * privilege.exit() once the last TCB is done.
+	     */
+	    javaThread = Thread.currentThread();
+	    continuation = newContinuation(new Runnable() {
+		    public void run() { threadroot(); }
+		});
+
+	    scheduleContinuation(this);
+	    runContinuations();
+	}
+	else if (virtualThreadFactory != null) {
+	    /* This is the first TCB, but it needs a virtual thread like all
+	     * the others, so that every TCB runs on the same carrier thread.
+	     * The current Java thread must then stay alive, since virtual
+	     * threads do not keep the JVM running; Nachos exits through
+	     * privilege.exit() once the last TCB is done.
+	     */
+	    javaThread = virtualThreadFactory.newThread(new Runnable() {
+		    public void run() { threadroot(); }
+		});
+	    javaThread.start();
+
+	    while (true)
+		LockSupport.park();
+	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
 	     * thread to run it; we just steal the current Java thread.
@@ -157,6 +395,10 @@ public final class TCB {
 
 		TCB previous = currentTCB;
 		previous.running = false;
+
+		Metrics metrics = Machine.metrics();
+		if (metrics != null)
+			metrics.contextSwitchStarted();
 	
 		this.interrupt();
 		previous.yield();
@@ -189,6 +431,32 @@ public final class TCB {
 	this.javaThread = null;
     }
 
+    /**
+     * Stop every TCB without exiting the JVM. Called when a hosted Nachos
+     * exits. Every TCB waiting to run is woken up, and throws
+     * <tt>ThreadDeath</tt> to unwind its Java thread; the caller must then do
+     * the same. Once halted, <tt>threadroot()</tt> lets TCBs terminate quietly,
+     * however they terminate.
+     */
+    static void halt() {
+	halted = true;
+
+	// continuations are run by one Java thread, which stops on its own
+	if (usingContinuations)
+	    return;
+
+	TCB[] tcbs;
+	synchronized (runningThreads) {
+	    tcbs = runningThreads.toArray(new TCB[0]);
+	}
+
+	for (TCB tcb : tcbs) {
+	    if (tcb.javaThread != null &&
+		tcb.javaThread != Thread.currentThread())
+		tcb.interrupt();
+	}
+    }
+
     /**
      * Destroy all TCBs and exit Nachos. Same as <tt>Machine.terminate()</tt>.
      */
@@ -238,21 +506,27 @@ public final class TCB {
 	    Lib.assertNotReached();
 	}
 	catch (ThreadDeath e) {
+	    if (halted)
+		return;
+
 	    // make sure this TCB is being destroyed properly
 	    if (!done) {
 		System.out.print("\nTCB terminated improperly!\n");
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
 	}
 	catch (Throwable e) {
+	    if (halted)
+		return;
+
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(1);
 	    else
@@ -277,17 +551,47 @@ public final class TCB {
 	}
 
 	currentTCB = this;
+
+	Metrics metrics = Machine.metrics();
+	if (metrics != null)
+	    metrics.contextSwitchFinished();
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Waits until the <tt>running</tt> flag of this TCB is set to
+     * <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB needs
+     * to go to wait for its turn to run. This includes the ping-pong process of
+     * starting and destroying TCBs, as well as in context switching from this
+     * TCB to another. We don't rely on <tt>currentTCB</tt>, since it is
+     * updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * With the lock-free handoff, the thread parks until the flag is set;
+     * since only the thread bound to this TCB ever parks on it, and the flag
+     * is set before the thread is unparked, a wakeup cannot be lost.
+     *
+     * <p>
+     * If Nachos has been halted while this TCB waited, this throws
+     * <tt>ThreadDeath</tt> instead of returning.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (usingContinuations) {
+	    while (!running)
+		yieldContinuation();
+	}
+	else if (parkHandoff) {
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    waitOnMonitor();
+	}
+
+	if (halted)
+	    throw new ThreadDeath();
+    }
+
+    private synchronized void waitOnMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -296,15 +600,93 @@ public final class TCB {
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and signalling its thread. Used in the ping-pong process of starting and
+     * destroying TCBs, as well as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
+	if (usingContinuations) {
+	    running = true;
+	    scheduleContinuation(this);
+	}
+	else if (parkHandoff) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    notifyMonitor();
+	}
+    }
+
+    private synchronized void notifyMonitor() {
 	running = true;
 	notify();
     }
 
+    /**
+     * Record that the specified TCB's continuation is the next one to run,
+     * once the current continuation yields or finishes. Only one TCB is ever
+     * woken up at a time, so there can be at most one.
+     */
+    private static void scheduleContinuation(TCB tcb) {
+	Lib.assertTrue(nextContinuation == null);
+	nextContinuation = tcb;
+    }
+
+    /**
+     * Run continuations, one at a time, for as long as Nachos runs. Called by
+     * <tt>start()</tt> for the first TCB, and only returns once a hosted
+     * Nachos has been halted. Each continuation runs until it
+     * yields in <tt>waitForInterrupt()</tt>, or until its
+     * <tt>threadroot()</tt> returns, having always woken up another TCB
+     * first.
+     */
+    private static void runContinuations() {
+	while (!halted) {
+	    TCB tcb = nextContinuation;
+	    Lib.assertTrue(tcb != null);
+	    nextContinuation = null;
+
+	    try {
+		continuationRun.invoke(tcb.continuation);
+	    }
+	    catch (Throwable e) {
+		throw rethrow(e);
+	    }
+	}
+    }
+
+    private static Object newContinuation(Runnable target) {
+	try {
+	    return continuationConstructor.invoke(continuationScope, target);
+	}
+	catch (Throwable e) {
+	    throw rethrow(e);
+	}
+    }
+
+    /**
+     * Suspend the current continuation, returning to
+     * <tt>runContinuations()</tt>. Returns when another TCB wakes this one
+     * up and its continuation is run again.
+     */
+    private static void yieldContinuation() {
+	try {
+	    continuationYield.invoke(continuationScope);
+	}
+	catch (Throwable e) {
+	    throw rethrow(e);
+	}
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+	if (e instanceof Error)
+	    throw (Error) e;
+	else if (e instanceof RuntimeException)
+	    return (RuntimeException) e;
+	else
+	    return new RuntimeException(e);
+    }
+
     private void associateThread(KThread thread) {
 	// make sure AutoGrader.runningThread() gets called only once per
 	// context switch
@@ -327,11 +709,43 @@ public final class TCB {
     }
 
     /**
-     * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * The default maximum number of started, non-destroyed TCB's that can be
+     * in existence. The <tt>TCB.maxThreads</tt> configuration key overrides
+     * it.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence, as configured.
+     */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * <tt>true</tt> if TCBs hand off control by parking and unparking their
+     * threads, and <tt>false</tt> if they use the monitor bound to each TCB.
+     */
+    private static boolean parkHandoff = false;
+
+    /**
+     * Creates the virtual threads for new TCBs, or <tt>null</tt> to create
+     * platform threads.
+     */
+    private static ThreadFactory virtualThreadFactory = null;
+
+    /**
+     * <tt>true</tt> if every TCB is a continuation run by the Java thread
+     * that started the first TCB.
+     */
+    private static boolean usingContinuations = false;
+
+    /** The TCB whose continuation runs next. */
+    private static TCB nextContinuation = null;
+
+    private static Object continuationScope;
+    private static MethodHandle continuationConstructor, continuationRun,
+	continuationYield;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -348,22 +762,32 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * A set containing all <i>running</i> TCB objects. It is initialized to
+     * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this set is basically never empty.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static Set<TCB> runningThreads =
+	Collections.synchronizedSet(new HashSet<TCB>());
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
 
+    /**
+     * Set by <tt>halt()</tt>, once a hosted Nachos has exited. It is
+     * <tt>volatile</tt> because it is set in one thread and tested in the
+     * threads that <tt>halt()</tt> wakes up.
+     */
+    private static volatile boolean halted = false;
+
+    private static final char dbgTCB = 'T';
+
     /**
      * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
      * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -387,8 +811,12 @@ public final class TCB {
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * It is <tt>volatile</tt> because the lock-free handoff sets it in one
+     * thread and tests it in another without holding a monitor.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -401,6 +829,7 @@ public final class TCB {
     private boolean associated = false;
     private Runnable target;
     private Runnable tcbTarget;
+    private Object continuation = null;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -5,9 +5,11 @@ import nachos.security.Privilege;
 /**
  * ϵ Ÿ̸Ӵ 뷫  500 Ŭ ƽ CPU Ÿ̸ ͷƮ մϴ. ̴ Ÿ ̽ ϰų
  * 带 Ư Ⱓ  Ű    ֽϴ.
+ * ̿ ,  ð   ߻ϴ ˶ ͷƮ   ֽϴ.
  *
  * <p><tt>Timer</tt> Ŭ 뷫 500 Ŭ ƽ   Ÿ̸ ͷƮ ߻ϵ Ͽ ϵ
  * Ÿ̸Ӹ ķƮմϴ. ⿡ ణ  Ƿ ͷƮ Ȯ  500 ƽ ߻ ʽϴ.
+ * μ  ̸  μ ڱ Ÿ̸ ͷƮ ޽ϴ.
  */
 public final class Timer {
 	/**
@@ -31,7 +33,8 @@ public final class Timer {
 			}
 		};
 
-		scheduleInterrupt();
+		for (int i=0; i<Machine.interrupt().getNumProcessors(); i++)
+			scheduleInterrupt(i);
 	}
 
 	/**
@@ -43,6 +46,60 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * ȸ ˶ ͷƮ ڵ鷯  ݹ մϴ.  ڵ鷯 ֱ Ÿ̸ ͷƮʹ ,
+	 * <tt>scheduleAlarm()</tt>  ð   ȣ˴ϴ.
+	 *
+	 * @param	handler		˶ ͷƮ ڵ鷯Դϴ.
+	 */
+	public void setAlarmHandler(Runnable handler) {
+		alarmHandler = handler;
+	}
+
+	/**
+	 *  ð <i>when</i> ȸ ˶ ͷƮ ߻ϵ մϴ.   ϳ ˶ Ǿ Ƿ,
+	 * ռ  ˶  ߻ ʾҴٸ  ˶ ҵ˴ϴ. <i>when</i> ̹   ƽ ߻մϴ.
+	 * ͷƮ ƽ  ȮεǹǷ, ڵ鷯 <i>when</i>  ù ° ƽ ȣ˴ϴ.
+	 *
+	 * <p>ͷƮ Ʈѷ  ͷƮ   Ƿ,    ȣ ø ߻ ˶ 밡
+	 * ֽ ƴϸ մϴ.
+	 *
+	 * @param	when	˶ ߻  ð(Ŭ ƽ)Դϴ.
+	 */
+	public void scheduleAlarm(long when) {
+		final long generation = ++alarmGeneration;
+		long delay = Math.max(1, when - getTime());
+
+		privilege.interrupt.schedule(delay, "alarm", new Runnable() {
+			public void run() { alarmInterrupt(generation); }
+		});
+	}
+
+	/**
+	 *  ȸ ˶  մϴ.
+	 */
+	public void cancelAlarm() {
+		alarmGeneration++;
+	}
+
+	/**
+	 *  ð <i>deadline</i> ۾   迡 մϴ.  ð  ð  
+	 * ģ  ϵǰ,  ƽ  ִ  ð ݿ˴ϴ. ϵ  谡   µ˴ϴ.
+	 *
+	 * @param	deadline	۾  ð(Ŭ ƽ)Դϴ.
+	 */
+	public void recordDeadline(long deadline) {
+		Stats stats = privilege.stats;
+		long lateness = getTime() - deadline;
+
+		stats.numDeadlines++;
+		if (lateness > 0) {
+			stats.numDeadlineMisses++;
+			stats.maxDeadlineLateness =
+				Math.max(stats.maxDeadlineLateness, lateness);
+		}
+	}
+
 	/**
 	 *  ð ɴϴ.
 	 *
@@ -53,8 +110,9 @@ public final class Timer {
 	}
 
 	private void timerInterrupt() {
-		scheduleInterrupt();
-		scheduleAutoGraderInterrupt();
+		int processor = Machine.interrupt().getProcessor();
+		scheduleInterrupt(processor);
+		scheduleAutoGraderInterrupt(processor);
 
 		lastTimerInterrupt = getTime();
 
@@ -62,16 +120,27 @@ public final class Timer {
 			handler.run();
 	}
 
-	private void scheduleInterrupt() {
+	private void alarmInterrupt(long generation) {
+		//  ̿ ٽ Ǿų ҵ ˶̸ մϴ
+		if (generation != alarmGeneration)
+			return;
+
+		if (alarmHandler != null)
+			alarmHandler.run();
+	}
+
+	private void scheduleInterrupt(int processor) {
 		int delay = Stats.TimerTicks;
 		int rand = Lib.random(delay/10);
 		delay +=  rand - (delay/20);
 
-		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+		privilege.interrupt.scheduleOn(processor, delay, "timer",
+				timerInterrupt);
 	}
 
-	private void scheduleAutoGraderInterrupt() {
-		privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+	private void scheduleAutoGraderInterrupt(int processor) {
+		privilege.interrupt.scheduleOn(processor, 1, "timerAG",
+				autoGraderInterrupt);
 	}
 
 	private long lastTimerInterrupt;
@@ -80,4 +149,6 @@ public final class Timer {
 
 	private Privilege privilege;
 	private Runnable handler = null;
+	private Runnable alarmHandler = null;
+	private long alarmGeneration = 0;
 }
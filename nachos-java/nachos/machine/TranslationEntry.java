@@ -48,6 +48,22 @@ public final class TranslationEntry {
 	readOnly = entry.readOnly;
 	used = entry.used;
 	dirty = entry.dirty;
+	asid = entry.asid;
+    }
+
+    /**
+     * Replace the contents of this translation entry with those of another.
+     *
+     * @param	entry	the translation entry to copy.
+     */
+    public void set(TranslationEntry entry) {
+	vpn = entry.vpn;
+	ppn = entry.ppn;
+	valid = entry.valid;
+	readOnly = entry.readOnly;
+	used = entry.used;
+	dirty = entry.dirty;
+	asid = entry.asid;
     }
 
     /** The virtual page number. */
@@ -78,4 +94,12 @@ public final class TranslationEntry {
      * user program.
      */
     public boolean dirty;
+
+    /**
+     * The address space this entry translates for, when it is in a TLB. A TLB
+     * entry is only used while its address space identifier is the
+     * processor's current one (see <tt>Processor.setASID()</tt>). Ignored in
+     * page tables.
+     */
+    public int asid;
 }
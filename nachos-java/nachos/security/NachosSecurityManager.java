@@ -54,6 +54,39 @@ public class NachosSecurityManager extends SecurityManager {
 	});
     }
 
+    /**
+     * Keep Nachos from exiting the JVM, so that it can share the JVM with
+     * other runs. This security manager must not be installed. Instead of
+     * exiting, <tt>exit()</tt> records the exit status, invokes the specified
+     * handler, which must stop every Nachos thread, and then stops the thread
+     * that called it by throwing <tt>ThreadDeath</tt>.
+     *
+     * @param	haltHandler	stops every Nachos thread.
+     */
+    public void host(Runnable haltHandler) {
+	Lib.assertTrue(this != System.getSecurityManager());
+	Lib.assertTrue(this.haltHandler == null && haltHandler != null);
+
+	this.haltHandler = haltHandler;
+    }
+
+    /**
+     * Wait until a hosted Nachos exits, and return the exit status it passed
+     * to <tt>exit()</tt>.
+     *
+     * @return	the exit status.
+     */
+    public synchronized int getExitStatus() {
+	Lib.assertTrue(haltHandler != null);
+
+	while (!exited) {
+	    try { wait(); }
+	    catch (InterruptedException e) { }
+	}
+
+	return exitStatus;
+    }
+
     private class PrivilegeProvider extends Privilege {
 	public void doPrivileged(Runnable action) {
 	    NachosSecurityManager.this.doPrivileged(action);
@@ -111,7 +144,21 @@ public class NachosSecurityManager extends SecurityManager {
 
     private void exit(int exitStatus) {
 	forcePrivilege();
-	System.exit(exitStatus);
+
+	if (haltHandler == null)
+	    System.exit(exitStatus);
+
+	// only the first exit counts; the rest come from threads being stopped
+	synchronized (this) {
+	    if (!exited) {
+		this.exitStatus = exitStatus;
+		exited = true;
+		notifyAll();
+	    }
+	}
+
+	haltHandler.run();
+	throw new ThreadDeath();
     }
 
     private boolean isPrivileged() {
@@ -313,6 +360,10 @@ public class NachosSecurityManager extends SecurityManager {
 
     private Thread privileged = null;
     private int privilegeCount = 0;
+
+    private Runnable haltHandler = null;
+    private boolean exited = false;
+    private int exitStatus;
     
     private static final char dbgSecurity = 'S';
 }
@@ -149,6 +149,22 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Schedule an interrupt that only the specified simulated processor
+	 * takes, such as its own timer interrupt. The interrupt is due when that
+	 * processor's clock reaches <i>when</i> ticks after the current time.
+	 * With a single processor, this is the same as <tt>schedule()</tt>.
+	 *
+	 * @param	processor	the number of the processor to interrupt.
+	 * @param	when	the number of ticks until the interrupt should
+	 *			occur.
+	 * @param	type	a name for the type of interrupt being
+	 *			scheduled.
+	 * @param	handler	the interrupt handler to call.
+	 */
+	public void scheduleOn(int processor, long when, String type,
+			       Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -158,6 +174,30 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of ticks that can pass before the earliest pending
+	 * interrupt is due. The processor may execute that many ticks worth of
+	 * instructions without calling <tt>tick()</tt>, and then charge them all
+	 * with a single call to <tt>tick(inKernelMode, count)</tt>; interrupts
+	 * are still delivered at the same simulated time.
+	 *
+	 * @return	the number of ticks before the next interrupt is due, or
+	 *		0 if every tick must be taken separately.
+	 */
+	public long ticksUntilNextInterrupt();
+
+	/**
+	 * Advance the simulated time by several ticks at once. Equivalent to
+	 * calling <tt>tick(inKernelMode)</tt> <i>count</i> times, provided no
+	 * interrupt is due before the last of them.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param count	the number of ticks to advance.
+	 */
+	public void tick(boolean inKernelMode, int count);
     }
 
     /**
@@ -170,6 +210,14 @@ public abstract class Privilege {
 	 * mode.
 	 */
 	public void flushPipe();
+
+	/**
+	 * Save the registers and address translation state of the processor
+	 * that was running, and load those of the specified processor.
+	 *
+	 * @param	number	the number of the processor that now runs.
+	 */
+	public void selectProcessor(int number);
     }
 
     /**
@@ -3,10 +3,14 @@ package nachos.threads;
 import nachos.machine.Lib;
 import nachos.machine.Machine;
 
-import java.util.*;
+import java.util.Arrays;
 
 /**
  * 하드웨어 타이머를 사용하여 선점을 제공하고 특정 시간까지 스레드를 대기시키는 클래스입니다.
+ *
+ * <p>주기적인 타이머 인터럽트는 선점에만 쓰입니다. 잠든 스레드는 가장 먼저 깨어날 스레드의 시각에 맞춰 예약한
+ * 일회성 알람 인터럽트로 깨우므로, 타이머 주기만큼 늦게 깨어나는 일이 없고 잠든 스레드가 없을 때는 알람
+ * 인터럽트도 발생하지 않습니다.
  */
 public class Alarm {
     /**
@@ -15,16 +19,21 @@ public class Alarm {
      * <p><b>주의</b>: 두 개 이상의 알람이 있을 경우 Nachos는 정상적으로 작동하지 않습니다.
      */
 
-    private Map<KThread, Long> blockedThreads = new HashMap<>();
+    private SleeperQueue sleepers = new SleeperQueue();
+    /** 예약된 알람의 시각. 예약된 알람이 없으면 <tt>Long.MAX_VALUE</tt>. */
+    private long alarmTime = Long.MAX_VALUE;
     public Alarm() {
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() { timerInterrupt(); }
         });
+        Machine.timer().setAlarmHandler(new Runnable() {
+            public void run() { alarmInterrupt(); }
+        });
     }
 
     /**
      * 타이머 인터럽트 핸들러입니다. 이는 기계의 타이머에 의해 주기적으로 호출됩니다 (대략적으로 매 500 클록 틱).
-     * 현재 스레드를 양보합니다. 다른 스레드가 실행되어야 할 경우 컨텍스트 스위치가 강제됩니다.
+     * 스케줄러가 선점해야 한다고 판단하면 현재 스레드를 양보합니다. 다른 스레드가 실행되어야 할 경우 컨텍스트 스위치가 강제됩니다.
      */
 
 
@@ -47,40 +56,205 @@ public class Alarm {
         if(x <= 0)
             return;
         // wakeTime을 현재까지 경과한 시간에서 x틱만큼 더한다
-        long wakeTime = Machine.timer().getTime() + x;
+        waitUntilTime(Machine.timer().getTime() + x);
+    }
+
+    /**
+     * 현재 스레드를 절대 시각 <i>wakeTime</i> 이후까지 대기시킵니다. 스레드는
+     * <i>wakeTime</i>에 맞춰 예약한 일회성 알람 인터럽트로 깨어나므로, 준비 상태가 되는 시각은
+     * <i>wakeTime</i>보다 많아야 한 틱 늦습니다. 실제로 다시 실행되는 시각은 그 뒤 스케줄러에
+     * 달려 있습니다. <i>wakeTime</i>이 이미 지났으면 즉시 리턴합니다.
+     *
+     * <p>상대 시간으로 대기하면 <tt>getTime()</tt>을 읽은 뒤 선점되었을 때 그만큼 늦게
+     * 깨어나지만, 이 메소드는 정해진 마감 시각에 맞추어 주기적으로 깨어나려는 스레드가
+     * 오차를 누적하지 않도록 해줍니다.
+     *
+     * @param	wakeTime	깨어날 절대 시각(타이머 틱).
+     */
+    public void waitUntilTime(long wakeTime) {
         // 인터럽트 상태 설정
         boolean intStatus  = Machine.interrupt().disable();
 
-        // 현재 스레드를 블록 시키고 대기중인 스레드의 리스트에 집어넣는다
-        blockedThreads.put(KThread.currentThread(), wakeTime);
-        KThread.sleep();
+        // 이미 지난 시각이면 기다리지 않는다
+        if (wakeTime > Machine.timer().getTime()) {
+            // 현재 스레드를 대기중인 스레드의 힙에 집어넣고 블록 시킨다
+            sleepers.add(wakeTime, KThread.currentThread());
+
+            // 지금 예약된 알람보다 먼저 깨어나야 하면 알람을 다시 예약한다
+            if (wakeTime < alarmTime) {
+                alarmTime = wakeTime;
+                Machine.timer().scheduleAlarm(wakeTime);
+            }
+
+            KThread.sleep();
+        }
 
         // 인터럽트 상태를 복원한다
         Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * 현재 스레드의 마감 시각을 <i>deadline</i>으로 정한 뒤 절대 시각 <i>wakeTime</i> 이후까지
+     * 대기시킵니다. 새 마감을 정하면 이전 마감은 끝난 것으로 기록되므로, 주기적인 스레드는 한 주기의 일을
+     * 마칠 때마다 이 메소드로 다음 주기의 시작 시각과 마감 시각을 함께 넘기면 됩니다. 마감 시각으로
+     * 스케줄하지 않는 스케줄러에서는 <tt>waitUntilTime(wakeTime)</tt>과 같습니다.
+     *
+     * @param	wakeTime	깨어날 절대 시각(타이머 틱).
+     * @param	deadline	깨어난 뒤 일을 마쳐야 하는 절대 시각, 또는
+     *				<tt>Scheduler.noDeadline</tt>.
+     */
+    public void waitUntilTime(long wakeTime, long deadline) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        // 잠들기 전에 마감을 바꿔야 깨어날 때 새 마감으로 줄을 선다
+        ThreadedKernel.scheduler.setDeadline(deadline);
+        waitUntilTime(wakeTime);
+
+        Machine.interrupt().restore(intStatus);
+    }
+
     public void timerInterrupt() {
+        // 인터럽트 핸들러이므로 인터럽트는 이미 꺼져 있다
+        Lib.assertTrue(Machine.interrupt().disabled());
+
+        // 잠든 스레드는 알람 인터럽트가 깨우므로, 여기서는 스케줄러가 선점하라고 할 때만 양보한다
+        if (ThreadedKernel.scheduler.timerInterrupt())
+            KThread.yield();
+    }
+
+    /**
+     * 알람 인터럽트 핸들러입니다. 가장 먼저 깨어날 스레드의 시각에 맞춰 예약되므로, 호출되었을 때는 적어도 하나의
+     * 스레드가 깨어날 때가 되어 있습니다. 깨어날 시각이 지난 스레드들을 깨우고, 남은 스레드가 있으면 그 중 가장 먼저
+     * 깨어날 시각으로 다음 알람을 예약합니다.
+     */
+    private void alarmInterrupt() {
         //  현재 시간을 확인한다
         long currentTime = Machine.timer().getTime();
 
-        // block된 스레드가 없으면 타이머 인터럽트가 발생해도 아무 일도 발생하지 않는다
-//        if(blockedThreads.isEmpty())
-//            return;
+        // 힙의 맨 앞에는 가장 먼저 깨어날 스레드가 있으므로,
+        // 깨어날 시각이 지난 스레드만 꺼내서 깨우고 나머지는 보지 않는다
+        while (!sleepers.isEmpty() && sleepers.firstTime() <= currentTime)
+            sleepers.removeFirst().ready(); // 쓰레드를 ready 상태로 전이
 
-        // 리스트에서 스레드를 하나씩 확인한다
-        // block된 쓰레드들 중에서 현재 시간이 경과한 것들을 깨움
-        for (Iterator<Map.Entry<KThread, Long>> iter = blockedThreads.entrySet().iterator(); iter.hasNext();) {
-            Map.Entry<KThread, Long> entry = iter.next();
-            KThread thread = entry.getKey();
-            Long wakeTime = entry.getValue();
+        // 남은 스레드가 있으면 다음 알람을 예약한다
+        if (sleepers.isEmpty()) {
+            alarmTime = Long.MAX_VALUE;
+        }
+        else {
+            alarmTime = sleepers.firstTime();
+            Machine.timer().scheduleAlarm(alarmTime);
+        }
 
-            if (currentTime >= wakeTime) {
-                thread.ready(); // 쓰레드를 ready 상태로 전이
-                iter.remove(); // 리스트에서 제거
+        // 깨운 스레드가 현재 스레드보다 먼저 실행되어야 하면 바로 양보한다
+        if (ThreadedKernel.scheduler.preemptionPending())
+            KThread.yield();
+    }
+
+    /**
+     * 깨어날 시각 순서로 정렬된, 대기 중인 스레드들의 최소 힙입니다. 깨어날 시각이 같은
+     * 스레드들은 잠든 순서대로 깨어납니다.
+     *
+     * <p>깨어날 시각과 순번은 <tt>long</tt> 배열에 그대로 저장하므로 비교할 때 박싱이
+     * 없고, 스레드를 추가하거나 꺼낼 때 <i>O(log n)</i> 만에 끝납니다. 따라서 타이머
+     * 인터럽트마다 드는 비용은 잠든 스레드의 수가 아니라 깨어날 스레드의 수에 비례합니다.
+     */
+    private static class SleeperQueue {
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /** 가장 먼저 깨어날 스레드의 깨어날 시각을 리턴합니다. */
+        long firstTime() {
+            Lib.assertTrue(size > 0);
+            return wakeTime[0];
+        }
+
+        void add(long when, KThread thread) {
+            if (size == wakeTime.length) {
+                int capacity = size * 2;
+                wakeTime = Arrays.copyOf(wakeTime, capacity);
+                sequence = Arrays.copyOf(sequence, capacity);
+                threads = Arrays.copyOf(threads, capacity);
             }
+
+            long seq = nextSequence++;
+
+            // 맨 끝의 빈 자리에서 시작해서, 부모보다 먼저 깨어나야 하는 동안 올라간다
+            int index = size++;
+            while (index > 0) {
+                int parent = (index-1) / 2;
+                if (!before(when, seq, wakeTime[parent], sequence[parent]))
+                    break;
+
+                move(parent, index);
+                index = parent;
+            }
+
+            set(index, when, seq, thread);
         }
 
-        KThread.currentThread().yield();
+        /** 가장 먼저 깨어날 스레드를 힙에서 꺼내서 리턴합니다. */
+        KThread removeFirst() {
+            Lib.assertTrue(size > 0);
+
+            KThread first = threads[0];
+
+            int last = --size;
+            long lastTime = wakeTime[last], lastSeq = sequence[last];
+            KThread lastThread = threads[last];
+            threads[last] = null;
+
+            if (last > 0) {
+                // 맨 앞의 빈 자리에서 시작해서, 더 먼저 깨어날 자식이 있는 동안 내려간다
+                int index = 0;
+                while (true) {
+                    int child = index*2 + 1;
+                    if (child >= size)
+                        break;
+
+                    if (child+1 < size &&
+                        before(wakeTime[child+1], sequence[child+1],
+                               wakeTime[child], sequence[child]))
+                        child++;
+
+                    if (!before(wakeTime[child], sequence[child],
+                                lastTime, lastSeq))
+                        break;
+
+                    move(child, index);
+                    index = child;
+                }
+
+                set(index, lastTime, lastSeq, lastThread);
+            }
+
+            return first;
+        }
+
+        private static boolean before(long time1, long seq1,
+                                      long time2, long seq2) {
+            return time1 < time2 || (time1 == time2 && seq1 < seq2);
+        }
+
+        private void move(int from, int to) {
+            wakeTime[to] = wakeTime[from];
+            sequence[to] = sequence[from];
+            threads[to] = threads[from];
+        }
+
+        private void set(int index, long when, long seq, KThread thread) {
+            wakeTime[index] = when;
+            sequence[index] = seq;
+            threads[index] = thread;
+        }
+
+        private long[] wakeTime = new long[initialCapacity];
+        private long[] sequence = new long[initialCapacity];
+        private KThread[] threads = new KThread[initialCapacity];
+        private int size = 0;
+        private long nextSequence = 0;
+
+        private static final int initialCapacity = 16;
     }
 
 
@@ -100,7 +274,11 @@ public class Alarm {
             System.out.println("wake-up time : " + wakeUpTime);
 
             ThreadedKernel.alarm.waitUntil(delay);
+
+            // 인터럽트 핸들러처럼 인터럽트를 끄고 호출한다
+            boolean intStatus = Machine.interrupt().disable();
             ThreadedKernel.alarm.timerInterrupt();
+            Machine.interrupt().restore(intStatus);
 
             nowTime = Machine.timer().getTime();
 
@@ -0,0 +1,423 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * An earliest-deadline-first scheduler.
+ *
+ * <p>
+ * Threads declare deadlines with <tt>Scheduler.setDeadline()</tt>, in
+ * absolute ticks, for example the time an alarm sleeper should have finished
+ * handling its wakeup, or the time by which a rider should have been
+ * served. The next thread to be dequeued from any queue is always the one
+ * with the earliest deadline; threads without a deadline come after all
+ * threads with one, and threads with the same deadline are dequeued
+ * first-come first-serve.
+ *
+ * <p>
+ * A thread with an earlier deadline than the current thread preempts it as
+ * soon as it is made ready by the alarm, instead of at the next timer
+ * interrupt. Periodic threads can sleep with
+ * <tt>Alarm.waitUntilTime(wakeTime, deadline)</tt>, which finishes their
+ * current deadline and sets the next one in the same call.
+ *
+ * <p>
+ * A deadline is finished when the thread sets its next deadline, clears it
+ * with <tt>noDeadline</tt>, or finishes. Each finished deadline is recorded
+ * with <tt>Timer.recordDeadline()</tt>, so the number of deadlines met and
+ * missed, and the worst lateness, are printed with the other statistics when
+ * the machine halts.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new EDF scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new EDF thread queue.
+     *
+     * @param	transferPriority	ignored. Deadlines are never donated.
+     * @return	a new EDF thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue(false);
+    }
+
+    /**
+     * Allocate the ready queue. Only threads made ready ahead of the current
+     * thread can preempt it, and dispatching a thread from the ready queue
+     * settles any preemption still pending.
+     *
+     * @return	a new EDF ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new DeadlineQueue(true);
+    }
+
+    public void setDeadline(KThread thread, long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+
+	if (state.deadline != noDeadline)
+	    Machine.timer().recordDeadline(state.deadline);
+
+	state.setDeadline(deadline);
+    }
+
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).deadline;
+    }
+
+    /**
+     * Record the deadline of a finishing thread, if it has one, so that a
+     * thread that finishes late still counts as a miss.
+     *
+     * @param	thread	the thread that is finishing.
+     */
+    public void threadFinishing(KThread thread) {
+	setDeadline(thread, noDeadline);
+    }
+
+    /**
+     * Return whether a thread with an earlier deadline than the current
+     * thread has been made ready since this was last called, or since the
+     * current thread was dispatched.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean preemptionPending() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	boolean preempt = preemptPending;
+	preemptPending = false;
+	return preempt;
+    }
+
+    /**
+     * Test that queues are ordered by deadline, that a pending preemption
+     * does not outlive the thread it was against, that the alarm lets a
+     * sleeper with an earlier deadline preempt the current thread, and that a
+     * finishing thread's deadline is recorded. Must be run with this
+     * scheduler.
+     */
+    public static void selfTest() {
+	EDFScheduler scheduler = (EDFScheduler) ThreadedKernel.scheduler;
+	KThread current = KThread.currentThread();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long now = Machine.timer().getTime();
+	scheduler.setDeadline(current, now + 100000);
+
+	// earliest deadline first, then first come first served, even for a
+	// thread whose deadline changed while it waited
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	KThread d = new KThread().setName("d");
+	scheduler.setDeadline(a, now + 300);
+	scheduler.setDeadline(b, now + 100);
+	scheduler.setDeadline(d, now + 100);
+
+	ThreadQueue q1 = scheduler.newThreadQueue(false);
+	q1.waitForAccess(a);
+	q1.waitForAccess(b);
+	q1.waitForAccess(c);
+	q1.waitForAccess(d);
+	scheduler.setDeadline(c, now + 50);
+
+	Lib.assertTrue(q1.nextThread() == c);
+	Lib.assertTrue(q1.nextThread() == b);
+	Lib.assertTrue(q1.nextThread() == d);
+	Lib.assertTrue(q1.nextThread() == a);
+	Lib.assertTrue(q1.nextThread() == null);
+	System.out.println("edf order ok");
+
+	// only the ready queue preempts, and only until the next dispatch
+	KThread early = new KThread().setName("early");
+	KThread late = new KThread().setName("late");
+	scheduler.setDeadline(early, now + 50000);
+
+	scheduler.preemptionPending();
+
+	ThreadQueue q2 = scheduler.newThreadQueue(false);
+	q2.waitForAccess(early);
+	Lib.assertTrue(!scheduler.preemptionPending());
+	Lib.assertTrue(q2.nextThread() == early);
+
+	ThreadQueue ready = scheduler.newReadyQueue();
+	ready.waitForAccess(late);
+	Lib.assertTrue(!scheduler.preemptionPending());
+	ready.waitForAccess(early);
+	Lib.assertTrue(ready.nextThread() == early);
+	Lib.assertTrue(!scheduler.preemptionPending());
+	Lib.assertTrue(ready.nextThread() == late);
+
+	ready.waitForAccess(early);
+	Lib.assertTrue(scheduler.preemptionPending());
+	Lib.assertTrue(ready.nextThread() == early);
+	System.out.println("edf preemption flag ok");
+
+	Machine.interrupt().restore(intStatus);
+
+	// a sleeper with an earlier deadline runs as soon as it wakes, and its
+	// deadline is recorded when it finishes without clearing it
+	final long wakeTime = now + 5000;
+	final long[] ranAt = { -1 };
+	KThread sleeper = new KThread(new Runnable() {
+		public void run() {
+		    ThreadedKernel.alarm.waitUntilTime(wakeTime, wakeTime + 1000);
+		    ranAt[0] = Machine.timer().getTime();
+		}
+	    }).setName("sleeper");
+
+	// a thread without a deadline would never run ahead of this one
+	intStatus = Machine.interrupt().disable();
+	scheduler.setDeadline(sleeper, now + 1000);
+	Machine.interrupt().restore(intStatus);
+
+	sleeper.fork();
+	KThread.yield();
+
+	// stay busy, with interrupts enabled so that time passes, until the
+	// alarm wakes the sleeper
+	while (ranAt[0] < 0) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+
+	Lib.assertTrue(ranAt[0] - wakeTime < Stats.TimerTicks / 10,
+		       "sleeper ran " + (ranAt[0] - wakeTime) + " ticks late");
+	System.out.println("edf alarm preemption ok");
+
+	sleeper.join();
+
+	// join() returns with interrupts disabled if the thread had finished
+	Machine.interrupt().disable();
+	Lib.assertTrue(scheduler.getDeadline(sleeper) == noDeadline);
+	scheduler.setDeadline(current, noDeadline);
+	Machine.interrupt().enable();
+	System.out.println("edf finish ok");
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> ordered by deadline.
+     *
+     * <p>
+     * The queue is an indexed binary heap: each waiting thread's
+     * <tt>ThreadState</tt> records where it is in the heap, so when the
+     * deadline of a waiting thread changes, it is sifted up or down from
+     * there in <i>O(log n)</i>, without searching for it.
+     */
+    private class DeadlineQueue extends ThreadQueue {
+	DeadlineQueue(boolean readyQueue) {
+	    this.readyQueue = readyQueue;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    state.waitingOn = this;
+	    state.sequence = nextSequence++;
+
+	    if (size == heap.length)
+		heap = Arrays.copyOf(heap, size*2);
+
+	    heap[size] = state;
+	    state.heapIndex = size++;
+	    siftUp(state);
+
+	    // a thread made ready ahead of the current one should run now
+	    KThread current = KThread.currentThread();
+	    if (readyQueue && thread != current && !current.isIdleThread() &&
+		before(state, getThreadState(current)))
+		preemptPending = true;
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // whatever preemption was pending was against the thread this one
+	    // is about to replace
+	    if (readyQueue)
+		preemptPending = false;
+
+	    if (size == 0)
+		return null;
+
+	    ThreadState first = heap[0];
+	    remove(first);
+
+	    return first.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(size == 0);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++) {
+		System.out.print(heap[i].thread + "(" +
+				 (heap[i].deadline == noDeadline ? "-" :
+				  "" + heap[i].deadline) + ") ");
+	    }
+	}
+
+	void remove(ThreadState state) {
+	    int index = state.heapIndex;
+	    ThreadState last = heap[--size];
+	    heap[size] = null;
+
+	    state.waitingOn = null;
+	    state.heapIndex = -1;
+
+	    if (last != state) {
+		heap[index] = last;
+		last.heapIndex = index;
+		update(last);
+	    }
+	}
+
+	/**
+	 * Restore the heap order after the deadline of a waiting thread has
+	 * changed, by moving it up or down as needed.
+	 */
+	void update(ThreadState state) {
+	    siftUp(state);
+	    siftDown(state);
+	}
+
+	private void siftUp(ThreadState state) {
+	    int index = state.heapIndex;
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		heap[index] = heap[parent];
+		heap[index].heapIndex = index;
+		index = parent;
+	    }
+
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	private void siftDown(ThreadState state) {
+	    int index = state.heapIndex;
+	    while (true) {
+		int child = index*2 + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+
+		if (!before(heap[child], state))
+		    break;
+
+		heap[index] = heap[child];
+		heap[index].heapIndex = index;
+		index = child;
+	    }
+
+	    heap[index] = state;
+	    state.heapIndex = index;
+	}
+
+	/** Whether this is the ready queue. */
+	private boolean readyQueue;
+	private ThreadState[] heap = new ThreadState[initialCapacity];
+	private int size = 0;
+	/** Orders threads with the same deadline by when they started
+	 *  waiting. */
+	private long nextSequence = 0;
+    }
+
+    private static boolean before(ThreadState state1, ThreadState state2) {
+	return state1.deadline < state2.deadline ||
+	    (state1.deadline == state2.deadline &&
+	     state1.sequence < state2.sequence);
+    }
+
+    /**
+     * The scheduling state of a thread: its deadline, and where it is in the
+     * queue it's waiting on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. The thread starts with no deadline.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Change the deadline of the associated thread, moving it within the
+	 * queue it's waiting on.
+	 *
+	 * @param	deadline	the new deadline.
+	 */
+	void setDeadline(long deadline) {
+	    this.deadline = deadline;
+
+	    if (waitingOn != null)
+		waitingOn.update(this);
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The deadline of the associated thread. */
+	protected long deadline = noDeadline;
+
+	/** The queue the associated thread is waiting on, if any. */
+	private DeadlineQueue waitingOn = null;
+	/** The position of the associated thread in <tt>waitingOn</tt>. */
+	private int heapIndex = -1;
+	/** When the associated thread started waiting on
+	 *  <tt>waitingOn</tt>. */
+	private long sequence;
+    }
+
+    private static final int initialCapacity = 16;
+
+    /** Set when a thread was made ready ahead of the current thread. */
+    private boolean preemptPending = false;
+}
@@ -49,15 +49,22 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			// 스케줄러가 레디 큐를 다른 큐와 다르게 만들 수 있도록 따로 요청한다
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
+			// 메트릭이 켜져 있으면 레디 큐를 이름으로 내보낸다
+			Metrics metrics = Machine.metrics();
+			if (metrics != null)
+				metrics.nameQueue(readyQueue, "ready");
+
 			currentThread = this;
 			tcb = TCB.currentTCB();
 			name = "main";
 			restoreState();
 
 			createIdleThread();
+			createProcessors();
 		}
     }
 
@@ -280,11 +287,18 @@ public class KThread {
 
 		// 상태를 레디 상태로 만든 뒤
 		status = statusReady;
+		readyTime = Machine.timer().getTime();
 		// 이 스레드가 idle스레드가 아니면
-		if (this != idleThread)
+		if (!idle) {
 			// 레디 큐에 레디 상태로 만든 스레드를 집어넣는다
 			readyQueue.waitForAccess(this);
 
+			// 메트릭이 켜져 있으면 레디 큐에서 기다리기 시작한 시점을 기록
+			Metrics metrics = Machine.metrics();
+			if (metrics != null)
+				metrics.queueWaitStarted(readyQueue, this);
+		}
+
 		Machine.autoGrader().readyThread(this);
     }
 
@@ -331,6 +345,9 @@ public class KThread {
 			}
 		}
 
+		// 스케줄러가 끝나지 않은 마감 같은 남은 상태를 정리하도록 알린다
+		ThreadedKernel.scheduler.threadFinishing(currentThread);
+
 		Machine.autoGrader().finishingCurrentThread();
 
 		Lib.assertTrue(toBeDestroyed == null);
@@ -379,15 +396,81 @@ public class KThread {
     private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
-		idleThread = new KThread(new Runnable() {
-			public void run() { while (true) yield(); }
-		});
-		idleThread.setName("idle");
+		idleThread = newIdleThread("idle");
 
 		Machine.autoGrader().setIdleThread(idleThread);
 
 		idleThread.fork();
     }
+
+    private static KThread newIdleThread(String name) {
+		KThread thread = new KThread(new Runnable() {
+			public void run() { while (true) yield(); }
+		});
+		thread.setName(name);
+		thread.idle = true;
+
+		return thread;
+    }
+
+    /**
+     * If the machine simulates several processors, give each processor but
+     * the first an idle thread of its own, which is the first thread it runs,
+     * and switch threads whenever the machine switches processors. Each
+     * processor has its own current thread and idle thread; the ready queue
+     * is shared, so a thread may run on a different processor each time it is
+     * dispatched.
+     */
+    private static void createProcessors() {
+		int numProcessors = Machine.interrupt().getNumProcessors();
+		if (numProcessors == 1)
+			return;
+
+		runningThreads = new KThread[numProcessors];
+		idleThreads = new KThread[numProcessors];
+
+		idleThreads[0] = idleThread;
+		for (int i=1; i<numProcessors; i++) {
+			runningThreads[i] = idleThreads[i] = newIdleThread("idle" + i);
+			idleThreads[i].fork();
+		}
+
+		Machine.interrupt().setProcessorSwitchHandler(new Runnable() {
+			public void run() { switchProcessor(); }
+		});
+    }
+
+    /**
+     * Switch to the thread running on the processor the machine has just
+     * switched to. Called by the machine with interrupts disabled. Returns
+     * once the machine switches back to the processor this thread runs on.
+     */
+    private static void switchProcessor() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(toBeDestroyed == null);
+
+		runningThreads[processor] = currentThread;
+
+		processor = Machine.interrupt().getProcessor();
+		currentThread = runningThreads[processor];
+		idleThread = idleThreads[processor];
+
+		currentThread.tcb.contextSwitch();
+
+		// 이 스레드의 프로세서로 돌아왔다. 전환한 스레드가 currentThread를 이 스레드로 되돌려 두었다
+		Lib.assertTrue(currentThread.tcb == TCB.currentTCB());
+		Machine.autoGrader().runningThread(currentThread);
+    }
+
+    /**
+     * Test whether this thread is an idle thread. Schedulers use this to
+     * leave the idle threads out of their accounting.
+     *
+     * @return	<tt>true</tt> if this is an idle thread.
+     */
+    boolean isIdleThread() {
+		return idle;
+    }
     
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
@@ -400,6 +483,10 @@ public class KThread {
 		if (nextThread == null)
 			// 비어있는 kThread객체를 다음 스레드로 한 뒤
 			nextThread = idleThread;
+
+		// 다른 프로세서에서 더 늦은 시각에 레디 상태가 된 스레드라면 이 프로세서의 시계를 그 시각까지 앞당긴다
+		if (runningThreads != null)
+			Machine.interrupt().advanceClock(nextThread.readyTime);
 		
 		// 다음에 실행하고자하는 스레드를 작동시킨다
 		nextThread.run();
@@ -437,6 +524,11 @@ public class KThread {
 
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 			  + " to: " + toString());
+
+		// 메트릭이 켜져 있으면 이 스레드의 대기 시간과 이전 스레드의 실행 시간을 기록
+		Metrics metrics = Machine.metrics();
+		if (metrics != null)
+			metrics.threadDispatched(readyQueue, currentThread, this);
 		
 		// 현재 스레드를 이 메소드를 호출한 스레드로 변경
 		currentThread = this;
@@ -540,6 +632,10 @@ public class KThread {
     private String name = "(unnamed thread)";
     private Runnable target;
     private TCB tcb;
+    /** <tt>true</tt> if this is a processor's idle thread. */
+    private boolean idle = false;
+    /** The time this thread was last made ready. */
+    private long readyTime = 0;
 
     /**
      * Unique identifer for this thread. Used to deterministically compare
@@ -553,4 +649,14 @@ public class KThread {
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+
+    /**
+     * With several processors, the thread running on each processor and each
+     * processor's idle thread; <tt>currentThread</tt> and <tt>idleThread</tt>
+     * are those of the processor that is running.
+     */
+    private static KThread[] runningThreads = null;
+    private static KThread[] idleThreads = null;
+    /** The processor <tt>currentThread</tt> is running on. */
+    private static int processor = 0;
 }
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -42,7 +40,547 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
     }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getLotteryState(thread).getTickets();
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long tickets = getLotteryState(thread).getEffectiveTickets();
+	return (int) Math.min(tickets, Integer.MAX_VALUE);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+	
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Test that tickets are summed and passed along a chain of queues when a
+     * thread waits, taken back when it acquires, and that each thread in a
+     * donation cycle is updated only once. Then hold draws among enough
+     * threads to grow a queue past its initial slots, and among threads
+     * holding more than 2<sup>31</sup> tickets between them, and check that
+     * each thread wins in proportion to its tickets. The draws depend on the
+     * random seed, so the test is repeatable for a given <tt>-s</tt>.
+     */
+    public static void selfTest() {
+	LotteryScheduler scheduler =
+	    (LotteryScheduler) ThreadedKernel.scheduler;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// a owns q1, b waits on q1 and owns q2, c and then d wait
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	KThread d = new KThread().setName("d");
+	ThreadQueue q1 = scheduler.newThreadQueue(true);
+	ThreadQueue q2 = scheduler.newThreadQueue(true);
+
+	scheduler.setPriority(b, 2);
+	scheduler.setPriority(c, 6);
+	scheduler.setPriority(d, 3);
+	q1.acquire(a);
+	q2.acquire(b);
+	q1.waitForAccess(b);
+	q2.waitForAccess(c);
+	checkEffective(scheduler, b, 8);
+	checkEffective(scheduler, a, 9);
+
+	scheduler.setPriority(c, 10);
+	checkEffective(scheduler, a, 13);
+
+	q1.waitForAccess(d);
+	checkEffective(scheduler, a, 16);
+	System.out.println("lottery donation ok");
+
+	KThread winner = q1.nextThread();
+	checkEffective(scheduler, a, 1);
+	Lib.assertTrue(winner == b || winner == d);
+	checkEffective(scheduler, winner, (winner == b) ? 15 : 4);
+	Lib.assertTrue(q1.nextThread() == ((winner == b) ? d : b));
+	checkEffective(scheduler, b, 12);
+	checkEffective(scheduler, d, 3);
+	System.out.println("lottery release ok");
+
+	// e and f wait on each other's queues
+	KThread e = new KThread().setName("e");
+	KThread f = new KThread().setName("f");
+	ThreadQueue q3 = scheduler.newThreadQueue(true);
+	ThreadQueue q4 = scheduler.newThreadQueue(true);
+
+	q3.acquire(e);
+	q4.acquire(f);
+	q3.waitForAccess(f);
+	q4.waitForAccess(e);
+	int before = scheduler.getEffectivePriority(f);
+	scheduler.setPriority(e, 5);
+	checkEffective(scheduler, f, before + 4);
+	System.out.println("lottery donation cycle ok");
+
+	// one thread holds as many tickets as the other 19 together
+	ThreadQueue q5 = scheduler.newThreadQueue(false);
+	KThread[] players = new KThread[20];
+	for (int i=0; i<players.length; i++) {
+	    players[i] = new KThread().setName("p" + i);
+	    q5.waitForAccess(players[i]);
+	}
+	scheduler.setPriority(players[0], players.length-1);
+
+	int draws = 10000, wins = 0;
+	for (int i=0; i<draws; i++) {
+	    KThread player = q5.nextThread();
+	    if (player == players[0])
+		wins++;
+	    q5.waitForAccess(player);
+	}
+	Lib.assertTrue(wins > draws*45/100 && wins < draws*55/100,
+		       "p0 won " + wins + " of " + draws + " draws");
+
+	int drained = 0;
+	while (q5.nextThread() != null)
+	    drained++;
+	Lib.assertTrue(drained == players.length);
+	System.out.println("lottery draws ok");
+
+	// more than 2^31 tickets in one queue
+	KThread big1 = new KThread().setName("big1");
+	KThread big2 = new KThread().setName("big2");
+	scheduler.setPriority(big1, priorityMaximum);
+	scheduler.setPriority(big2, priorityMaximum);
+
+	wins = 0;
+	for (int i=0; i<1000; i++) {
+	    q5.waitForAccess(big1);
+	    q5.waitForAccess(big2);
+	    if (q5.nextThread() == big1)
+		wins++;
+	    q5.nextThread();
+	}
+	Lib.assertTrue(q5.nextThread() == null);
+	Lib.assertTrue(wins > 400 && wins < 600,
+		       "big1 won " + wins + " of 1000 draws");
+	System.out.println("lottery draws over 2^31 tickets ok");
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static void checkEffective(LotteryScheduler scheduler,
+				       KThread thread, int expected) {
+	int effective = scheduler.getEffectivePriority(thread);
+	Lib.assertTrue(effective == expected,
+		       thread + " has " + effective + " effective tickets" +
+		       ", expected " + expected);
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the lottery state of the specified thread.
+     *
+     * @param	thread	the thread whose lottery state to return.
+     * @return	the lottery state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Each waiting thread occupies a slot in a Fenwick (binary indexed) tree
+     * over the effective tickets of the slots. The sum of the tickets before
+     * any slot, and the slot holding any given ticket, can both be found in
+     * <i>O(log n)</i>, so a draw picks a random ticket and descends the tree
+     * to its holder instead of summing over every waiter. When a waiter's
+     * tickets change, only the <i>O(log n)</i> tree nodes covering its slot
+     * are updated.
+     *
+     * <p>
+     * If this queue transfers tickets, its owner receives the total of all
+     * the tickets in the queue. Changes to that total are passed to the
+     * owner as a difference, and from there along the chain of queues the
+     * owner is waiting on.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getLotteryState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState next = pickNextThread();
+	    if (next == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    next.acquire(this);
+	    return next.thread;
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads, and return the winner
+	 * without removing it.
+	 *
+	 * @return	the winner, or <tt>null</tt> if no threads are waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long ticket;
+	    if (totalTickets <= Integer.MAX_VALUE)
+		ticket = Lib.random((int) totalTickets);
+	    else
+		ticket = Math.min((long) (Lib.random() * totalTickets),
+				  totalTickets-1);
+
+	    return waiters[findSlot(ticket)];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<capacity; i++) {
+		if (waiters[i] != null)
+		    System.out.print(" " + waiters[i].thread + "(" +
+				     tickets[i] + ")");
+	    }
+	    System.out.println(" total " + totalTickets);
+	}
+
+	/**
+	 * Add a thread to this queue, in a free slot.
+	 */
+	void add(LotteryState state) {
+	    if (size == capacity)
+		grow();
+
+	    int slot = freeSlots[capacity - 1 - size++];
+
+	    waiters[slot] = state;
+	    state.slot = slot;
+
+	    adjust(slot, state.effectiveTickets);
+
+	    if (transferPriority && owner != null)
+		owner.adjustDonations(state.effectiveTickets);
+	}
+
+	/**
+	 * Remove a thread from this queue, freeing its slot.
+	 */
+	void remove(LotteryState state) {
+	    int slot = state.slot;
+	    long removed = tickets[slot];
+
+	    adjust(slot, -removed);
+
+	    if (transferPriority && owner != null)
+		owner.adjustDonations(-removed);
+
+	    waiters[slot] = null;
+	    state.slot = -1;
+	    freeSlots[capacity - 1 - --size] = slot;
+	}
+
+	/**
+	 * Add <i>delta</i> to the tickets held in a slot. The caller is
+	 * responsible for passing the change on to the owner.
+	 */
+	void adjust(int slot, long delta) {
+	    tickets[slot] += delta;
+	    for (int i=slot+1; i<=capacity; i+=i&-i)
+		tree[i] += delta;
+
+	    totalTickets += delta;
+	}
+
+	/**
+	 * Return the slot holding the specified ticket, where tickets are
+	 * numbered from 0 through the slots in order.
+	 */
+	private int findSlot(long ticket) {
+	    int index = 0;
+	    for (int step=capacity; step>0; step>>=1) {
+		int next = index + step;
+		if (next <= capacity && tree[next] <= ticket) {
+		    index = next;
+		    ticket -= tree[next];
+		}
+	    }
+
+	    return index;
+	}
+
+	/**
+	 * Double the number of slots, rebuilding the tree in linear time.
+	 */
+	private void grow() {
+	    int oldCapacity = capacity;
+	    capacity = Math.max(initialCapacity, capacity*2);
+
+	    waiters = Arrays.copyOf(waiters, capacity);
+	    tickets = Arrays.copyOf(tickets, capacity);
+
+	    // every slot is in use, so only the new ones are free
+	    freeSlots = new int[capacity];
+	    for (int i=0; i<capacity-oldCapacity; i++)
+		freeSlots[i] = capacity - 1 - i;
+
+	    tree = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		tree[i] += tickets[i-1];
+		int parent = i + (i&-i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, moving this
+	 * queue's tickets from the previous owner to it.
+	 *
+	 * @param	state	the new owner, or <tt>null</tt> if none.
+	 */
+	void setOwner(LotteryState state) {
+	    if (!transferPriority || owner == state)
+		return;
+
+	    if (owner != null)
+		owner.adjustDonations(-totalTickets);
+
+	    owner = state;
+
+	    if (owner != null)
+		owner.adjustDonations(totalTickets);
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The number of slots, always a power of two. */
+	private int capacity = 0;
+	/** The number of slots in use. */
+	private int size = 0;
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private LotteryState[] waiters = new LotteryState[0];
+	/** The tickets held in each slot. */
+	private long[] tickets = new long[0];
+	/** The Fenwick tree over <tt>tickets</tt>, indexed from 1. */
+	private long[] tree = new long[1];
+	/** A stack of the free slots, whose top is at
+	 *  <tt>capacity-1-size</tt> and which grows downwards. */
+	private int[] freeSlots = new int[0];
+	/** The sum of the tickets of all waiting threads. */
+	private long totalTickets = 0;
+	/** The thread that last acquired this queue, if it transfers
+	 *  tickets. */
+	private LotteryState owner = null;
+    }
+
+    /**
+     * The lottery state of a thread: the tickets it holds, the tickets
+     * donated to it, and the queue it's waiting for, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	    this.tickets = priorityDefault;
+	    this.effectiveTickets = priorityDefault;
+	}
+
+	/**
+	 * Return the number of tickets held by the associated thread.
+	 *
+	 * @return	the number of tickets held by the associated thread.
+	 */
+	public int getTickets() {
+	    return tickets;
+	}
+
+	/**
+	 * Return the number of tickets held by the associated thread plus the
+	 * number donated to it.
+	 *
+	 * @return	the effective number of tickets.
+	 */
+	public long getEffectiveTickets() {
+	    return effectiveTickets;
+	}
+
+	/**
+	 * Set the number of tickets held by the associated thread.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    long delta = tickets - this.tickets;
+	    this.tickets = tickets;
+
+	    adjustDonations(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on the specified
+	 * queue.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(LotteryQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+	}
+
+	/**
+	 * Called when the associated thread has acquired access to whatever
+	 * is guarded by <tt>waitQueue</tt>.
+	 *
+	 * @param	waitQueue	the queue that was acquired.
+	 */
+	public void acquire(LotteryQueue waitQueue) {
+	    if (waitingOn == waitQueue) {
+		waitQueue.remove(this);
+		waitingOn = null;
+	    }
+
+	    waitQueue.setOwner(this);
+	}
+
+	/**
+	 * Add <i>delta</i> to the effective tickets of the associated thread,
+	 * and to those of every thread it is donating to, following the chain
+	 * of queues each is waiting on. The chain can only loop back on
+	 * itself if those threads are deadlocked; each thread is still
+	 * updated only once.
+	 *
+	 * @param	delta	the change in effective tickets.
+	 */
+	void adjustDonations(long delta) {
+	    if (delta == 0)
+		return;
+
+	    long stamp = ++donationStamp;
+
+	    for (LotteryState state=this; state!=null; ) {
+		if (state.stamp == stamp)
+		    break;
+		state.stamp = stamp;
+
+		state.effectiveTickets += delta;
+
+		LotteryQueue queue = state.waitingOn;
+		if (queue == null)
+		    break;
+
+		queue.adjust(state.slot, delta);
+		state = queue.transferPriority ? queue.owner : null;
+	    }
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets held by the associated thread. */
+	protected int tickets;
+	/** The tickets held by and donated to the associated thread. */
+	protected long effectiveTickets;
+
+	/** The queue the associated thread is waiting on, if any. */
+	private LotteryQueue waitingOn = null;
+	/** The slot of the associated thread in <tt>waitingOn</tt>. */
+	private int slot = -1;
+	/** The last donation that passed through this thread. */
+	private long stamp = 0;
+    }
+
+    /** Identifies each donation, so that it visits each thread once. */
+    private long donationStamp = 0;
+
+    private static final int initialCapacity = 8;
 }
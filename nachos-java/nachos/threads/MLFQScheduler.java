@@ -0,0 +1,467 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept at one of several levels, level 0 being the highest. The
+ * next thread to be dequeued is always one from the highest non-empty level,
+ * and threads at the same level are dequeued first-come first-serve. A new
+ * thread starts at level 0.
+ *
+ * <p>
+ * Each level has a quantum, counted in timer interrupts, that doubles from
+ * one level to the next. Every timer interrupt while a thread runs is charged
+ * against its quantum, whether or not it blocked in between. When a thread
+ * has used up its quantum it is moved down a level and preempted; until then
+ * it is only preempted if a thread from a higher level has become ready,
+ * which the alarm checks for as soon as it wakes a thread up. So
+ * threads that keep the CPU busy sink to the lower levels, while threads that
+ * mostly wait, for the console or for each other, stay near the top and are
+ * run as soon as they are ready.
+ *
+ * <p>
+ * To keep threads at the lower levels from starving, and to let threads that
+ * stop being busy rise again, every thread is periodically boosted back to
+ * level 0.
+ *
+ * <p>
+ * The scheduler is configured by these keys:
+ * <ul>
+ * <li><tt>MLFQScheduler.levels</tt>: the number of levels. Defaults to 3.
+ * <li><tt>MLFQScheduler.quantum</tt>: the quantum at level 0, in timer
+ * interrupts. Defaults to 1.
+ * <li><tt>MLFQScheduler.boostInterval</tt>: the number of ticks between
+ * boosts. Defaults to 50 timer periods.
+ * </ul>
+ *
+ * <p>
+ * When the machine halts, the scheduler prints how many ticks threads
+ * spent running at each level, and how many demotions and boosts there were.
+ * Residency is sampled: the ticks since the previous timer interrupt are
+ * charged to the level of whichever thread is running at the next one.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	numLevels = Config.getInteger("MLFQScheduler.levels", 3);
+	Lib.assertTrue(numLevels >= 1 && numLevels <= maxLevels,
+		       "MLFQScheduler.levels must be between 1 and " +
+		       maxLevels);
+
+	baseQuantum = Config.getInteger("MLFQScheduler.quantum", 1);
+	Lib.assertTrue(baseQuantum >= 1);
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  50*Stats.TimerTicks);
+	Lib.assertTrue(boostInterval >= 1);
+
+	residency = new long[numLevels];
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue.
+     *
+     * @param	transferPriority	ignored. Levels are never donated.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread. The highest level, level
+     * 0, is priority <tt>levels-1</tt>, and the lowest is priority 0.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return numLevels-1 - getThreadState(thread).level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move the specified thread to the level with the specified priority,
+     * with a full quantum.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= 0 && priority < numLevels);
+
+	getThreadState(thread).setLevel(numLevels-1 - priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == numLevels-1) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == 0) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Charge the timer interrupt to the current thread, demote it if it has
+     * used up its quantum, and boost every thread if it is time to.
+     *
+     * @return	<tt>true</tt> if the current thread was demoted, if a thread
+     *		from a higher level became ready since the last timer
+     *		interrupt, or if the threads were boosted.
+     */
+    public boolean timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	long elapsed = time - lastTimerInterrupt;
+	lastTimerInterrupt = time;
+
+	boolean preempt = preemptPending;
+	preemptPending = false;
+
+	KThread current = KThread.currentThread();
+	if (current.isIdleThread())
+	    idleTicks += elapsed;
+	else
+	    residency[getThreadState(current).level] += elapsed;
+
+	if (time - lastBoost >= boostInterval) {
+	    lastBoost = time;
+	    boostEpoch++;
+	    numBoosts++;
+	    return true;
+	}
+
+	if (current.isIdleThread())
+	    return true;
+
+	ThreadState state = getThreadState(current);
+
+	if (--state.quantumLeft <= 0) {
+	    if (state.level < numLevels-1) {
+		state.level++;
+		numDemotions++;
+	    }
+
+	    state.quantumLeft = quantum(state.level);
+	    preempt = true;
+	}
+
+	return preempt;
+    }
+
+    /**
+     * Return whether a thread from a higher level than the current thread
+     * has become ready since the last timer interrupt, so that it need not
+     * wait for the next one.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean preemptionPending() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	boolean preempt = preemptPending;
+	preemptPending = false;
+	return preempt;
+    }
+
+    public void printStats() {
+	long total = idleTicks;
+	for (int level=0; level<numLevels; level++)
+	    total += residency[level];
+
+	System.out.println("MLFQ residency:");
+	for (int level=0; level<numLevels; level++)
+	    printResidency("level " + level, residency[level], total);
+	printResidency("idle", idleTicks, total);
+
+	System.out.println("MLFQ demotions " + numDemotions +
+			   ", boosts " + numBoosts);
+    }
+
+    private static void printResidency(String name, long ticks, long total) {
+	double percent = (total == 0) ? 0 : 100.0 * ticks / total;
+
+	System.out.println(String.format("  %-8s %10d ticks %5.1f%%",
+					 name, ticks, percent));
+    }
+
+    /**
+     * Return the quantum of the specified level, in timer interrupts.
+     */
+    private int quantum(int level) {
+	return baseQuantum << level;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread, first moving it
+     * to level 0 if there has been a boost since it was last looked at.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	ThreadState state = (ThreadState) thread.schedulingState;
+
+	if (state.boostEpoch != boostEpoch) {
+	    // a waiting thread's level can only change along with its queue's
+	    if (state.waitingOn != null)
+		state.waitingOn.boost();
+	    else
+		state.boost();
+	}
+
+	return state;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level, linked through the
+     * threads' <tt>ThreadState</tt>s, and a bitmask of the non-empty levels.
+     *
+     * <p>
+     * A boost does not visit every queue. Instead, each queue notices the
+     * boost the next time it is used, and moves all its threads to level 0
+     * at once, keeping their order level by level.
+     */
+    private class MLFQQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (queueEpoch != boostEpoch)
+		boost();
+
+	    add(state);
+
+	    // a thread made ready ahead of the current one should not have to
+	    // wait out the rest of the current thread's quantum
+	    KThread current = KThread.currentThread();
+	    if (thread != current && !current.isIdleThread() &&
+		state.level < getThreadState(current).level)
+		preemptPending = true;
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (queueEpoch != boostEpoch)
+		boost();
+
+	    if (nonEmpty == 0)
+		return null;
+
+	    ThreadState state = head[Integer.numberOfTrailingZeros(nonEmpty)];
+	    remove(state);
+
+	    return state.thread;
+	}
+
+	/**
+	 * The specified thread has received exclusive access, without using
+	 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. Assert that no
+	 * threads are waiting for access.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(nonEmpty == 0);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int level=0; level<numLevels; level++) {
+		for (ThreadState s=head[level]; s!=null; s=s.nextWaiter)
+		    System.out.print(s.thread + "(" + level + ") ");
+	    }
+	}
+
+	void add(ThreadState state) {
+	    int level = state.level;
+
+	    state.waitingOn = this;
+	    state.prevWaiter = tail[level];
+	    state.nextWaiter = null;
+
+	    if (tail[level] == null)
+		head[level] = state;
+	    else
+		tail[level].nextWaiter = state;
+	    tail[level] = state;
+
+	    nonEmpty |= 1 << level;
+	}
+
+	void remove(ThreadState state) {
+	    int level = state.level;
+
+	    if (state.prevWaiter == null)
+		head[level] = state.nextWaiter;
+	    else
+		state.prevWaiter.nextWaiter = state.nextWaiter;
+
+	    if (state.nextWaiter == null)
+		tail[level] = state.prevWaiter;
+	    else
+		state.nextWaiter.prevWaiter = state.prevWaiter;
+
+	    state.waitingOn = null;
+	    state.prevWaiter = state.nextWaiter = null;
+
+	    if (head[level] == null)
+		nonEmpty &= ~(1 << level);
+	}
+
+	/**
+	 * Catch up with the latest boost: append every lower level's list to
+	 * level 0's, and reset the threads on them.
+	 */
+	void boost() {
+	    queueEpoch = boostEpoch;
+
+	    for (int level=0; level<numLevels; level++) {
+		for (ThreadState s=head[level]; s!=null; s=s.nextWaiter)
+		    s.boost();
+
+		if (level == 0 || head[level] == null)
+		    continue;
+
+		if (tail[0] == null)
+		    head[0] = head[level];
+		else
+		    tail[0].nextWaiter = head[level];
+		head[level].prevWaiter = tail[0];
+		tail[0] = tail[level];
+
+		head[level] = tail[level] = null;
+	    }
+
+	    nonEmpty = (head[0] == null) ? 0 : 1;
+	}
+
+	private ThreadState[] head = new ThreadState[numLevels];
+	private ThreadState[] tail = new ThreadState[numLevels];
+	/** Bit <i>l</i> is set if the list for level <i>l</i> is non-empty. */
+	private int nonEmpty = 0;
+	/** The last boost this queue has caught up with. */
+	private int queueEpoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, what is left of its
+     * quantum, and the queue it's waiting on, if any.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread. The thread starts at level 0.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    boost();
+	}
+
+	/**
+	 * Move the associated thread to the specified level, with a full
+	 * quantum.
+	 *
+	 * @param	level	the new level.
+	 */
+	void setLevel(int level) {
+	    MLFQQueue queue = waitingOn;
+	    if (queue != null)
+		queue.remove(this);
+
+	    this.level = level;
+	    quantumLeft = quantum(level);
+
+	    if (queue != null)
+		queue.add(this);
+	}
+
+	/**
+	 * Move the associated thread to level 0, with a full quantum, as of
+	 * the latest boost. Does not move it between its queue's lists.
+	 */
+	void boost() {
+	    level = 0;
+	    quantumLeft = quantum(0);
+	    boostEpoch = MLFQScheduler.this.boostEpoch;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread; 0 is the highest. */
+	protected int level;
+	/** The number of timer interrupts left in the current quantum. */
+	protected int quantumLeft;
+
+	/** The last boost this thread has caught up with. */
+	private int boostEpoch;
+	/** The queue the associated thread is waiting on, if any. */
+	private MLFQQueue waitingOn = null;
+	/** The neighbors of the associated thread in <tt>waitingOn</tt>. */
+	private ThreadState prevWaiter = null, nextWaiter = null;
+    }
+
+    private static final int maxLevels = 31;
+
+    private int numLevels;
+    private int baseQuantum;
+    private long boostInterval;
+
+    /** Counts the boosts, so that queues and threads can catch up lazily. */
+    private int boostEpoch = 0;
+    private long lastBoost = 0;
+    private long lastTimerInterrupt = 0;
+    /** Set when a thread became ready ahead of the current thread. */
+    private boolean preemptPending = false;
+
+    /** The ticks threads have spent running at each level. */
+    private long[] residency;
+    private long idleTicks = 0;
+    private long numDemotions = 0;
+    private long numBoosts = 0;
+}
@@ -72,8 +72,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -87,8 +89,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -96,6 +100,131 @@ public class PriorityScheduler extends Scheduler {
 	return true;
     }
 
+    /**
+     * Test that priority is donated along a chain of queues, taken back on
+     * release, counted once for each queue that donates it, and that waiting
+     * threads keep their place in line when their priority changes. Most of
+     * the tests work on queues directly, with threads that are never forked;
+     * the last one donates through a <tt>Lock</tt> to a running thread.
+     */
+    public static void selfTest() {
+	PriorityScheduler scheduler =
+	    (PriorityScheduler) ThreadedKernel.scheduler;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	// a owns q1, b waits on q1 and owns q2, c waits on q2
+	KThread a = new KThread().setName("a");
+	KThread b = new KThread().setName("b");
+	KThread c = new KThread().setName("c");
+	ThreadQueue q1 = scheduler.newThreadQueue(true);
+	ThreadQueue q2 = scheduler.newThreadQueue(true);
+
+	q1.acquire(a);
+	q2.acquire(b);
+	q1.waitForAccess(b);
+	scheduler.setPriority(c, 6);
+	q2.waitForAccess(c);
+	checkEffective(scheduler, a, 6);
+	checkEffective(scheduler, b, 6);
+
+	scheduler.setPriority(c, 3);
+	checkEffective(scheduler, a, 3);
+	checkEffective(scheduler, b, 3);
+
+	Lib.assertTrue(q1.nextThread() == b);
+	checkEffective(scheduler, a, priorityDefault);
+	checkEffective(scheduler, b, 3);
+	System.out.println("priority donation chain ok");
+
+	// d owns two queues, each donating the same priority
+	KThread d = new KThread().setName("d");
+	KThread e = new KThread().setName("e");
+	KThread f = new KThread().setName("f");
+	ThreadQueue q3 = scheduler.newThreadQueue(true);
+	ThreadQueue q4 = scheduler.newThreadQueue(true);
+
+	q3.acquire(d);
+	q4.acquire(d);
+	scheduler.setPriority(e, 5);
+	scheduler.setPriority(f, 5);
+	q3.waitForAccess(e);
+	q4.waitForAccess(f);
+	checkEffective(scheduler, d, 5);
+
+	Lib.assertTrue(q3.nextThread() == e);
+	checkEffective(scheduler, d, 5);
+	Lib.assertTrue(q4.nextThread() == f);
+	checkEffective(scheduler, d, priorityDefault);
+	System.out.println("priority release ok");
+
+	// highest priority first, then first come first served, even for a
+	// thread whose priority went up and back down while it waited
+	ThreadQueue q5 = scheduler.newThreadQueue(false);
+	KThread[] waiters = new KThread[4];
+	for (int i=0; i<waiters.length; i++) {
+	    waiters[i] = new KThread().setName("w" + i);
+	    scheduler.setPriority(waiters[i], 2);
+	    q5.waitForAccess(waiters[i]);
+	}
+	KThread urgent = new KThread().setName("urgent");
+	scheduler.setPriority(urgent, 4);
+	q5.waitForAccess(urgent);
+
+	scheduler.setPriority(waiters[1], 3);
+	scheduler.setPriority(waiters[1], 2);
+	scheduler.setPriority(waiters[3], 3);
+
+	Lib.assertTrue(q5.nextThread() == urgent);
+	Lib.assertTrue(q5.nextThread() == waiters[3]);
+	Lib.assertTrue(q5.nextThread() == waiters[0]);
+	Lib.assertTrue(q5.nextThread() == waiters[1]);
+	Lib.assertTrue(q5.nextThread() == waiters[2]);
+	Lib.assertTrue(q5.nextThread() == null);
+	System.out.println("priority order ok");
+
+	Machine.interrupt().restore(intStatus);
+
+	// a running thread blocked on a lock donates to its holder
+	final Lock lock = new Lock();
+	KThread high = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    lock.release();
+		}
+	    }).setName("high");
+
+	lock.acquire();
+
+	intStatus = Machine.interrupt().disable();
+	scheduler.setPriority(high, 6);
+	Machine.interrupt().restore(intStatus);
+
+	high.fork();
+	KThread.yield();
+
+	intStatus = Machine.interrupt().disable();
+	checkEffective(scheduler, KThread.currentThread(), 6);
+	Machine.interrupt().restore(intStatus);
+
+	lock.release();
+
+	intStatus = Machine.interrupt().disable();
+	checkEffective(scheduler, KThread.currentThread(), priorityDefault);
+	Machine.interrupt().restore(intStatus);
+
+	high.join();
+	System.out.println("priority donation through a lock ok");
+    }
+
+    private static void checkEffective(PriorityScheduler scheduler,
+				       KThread thread, int expected) {
+	int effective = scheduler.getEffectivePriority(thread);
+	Lib.assertTrue(effective == expected,
+		       thread + " has effective priority " + effective +
+		       ", expected " + expected);
+    }
+
     /**
      * The default priority for a new thread. Do not change this value.
      */
@@ -122,8 +251,35 @@ public class PriorityScheduler extends Scheduler {
 	return (ThreadState) thread.schedulingState;
     }
 
+    /**
+     * Return the highest priority level set in the specified bitmask.
+     *
+     * @param	mask	a bitmask with bit <i>p</i> set for each priority
+     *			level <i>p</i>.
+     * @return	the highest level set, or -1 if no bits are set.
+     */
+    private static int highestLevel(int mask) {
+	return 31 - Integer.numberOfLeadingZeros(mask);
+    }
+
+    private static final int numLevels = priorityMaximum - priorityMinimum + 1;
+
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * <p>
+     * Waiting threads are kept in one FIFO list per priority level, linked
+     * through their <tt>ThreadState</tt>s, and a bitmask records which
+     * levels are non-empty. The highest waiting priority is therefore the
+     * highest bit of the mask, and <tt>nextThread()</tt> takes the head of
+     * that level's list, without looking at any other waiting thread.
+     *
+     * <p>
+     * If this queue transfers priority, the highest waiting priority is
+     * donated to the owner, which counts the donations it receives by level.
+     * Whenever that priority changes, only the owner's count for the old and
+     * new levels is updated, and the change is passed further along the
+     * chain only if the owner's effective priority changes too.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +298,15 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    next.acquire(this);
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +317,112 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    int level = highestLevel(nonEmpty);
+	    if (level < 0)
+		return null;
+
+	    return head[level];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=priorityMaximum; level>=priorityMinimum; level--) {
+		for (ThreadState s=head[level]; s!=null; s=s.nextWaiter)
+		    System.out.print(" " + s.thread + "(" + level + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add a thread to the tail of the list for its effective priority.
+	 * Threads that have waited longer, according to their
+	 * <tt>waitSequence</tt>, stay ahead of it, so a thread whose priority
+	 * changes while it waits keeps its place in line at the new level.
+	 */
+	void add(ThreadState state) {
+	    int level = state.effectivePriority;
+
+	    ThreadState before = tail[level];
+	    while (before != null && before.waitSequence > state.waitSequence)
+		before = before.prevWaiter;
+
+	    ThreadState after = (before == null) ? head[level] : before.nextWaiter;
+
+	    state.prevWaiter = before;
+	    state.nextWaiter = after;
+
+	    if (before == null)
+		head[level] = state;
+	    else
+		before.nextWaiter = state;
+
+	    if (after == null)
+		tail[level] = state;
+	    else
+		after.prevWaiter = state;
+
+	    nonEmpty |= 1 << level;
+	}
+
+	/**
+	 * Remove a thread from the list for its effective priority.
+	 */
+	void remove(ThreadState state) {
+	    int level = state.effectivePriority;
+
+	    if (state.prevWaiter == null)
+		head[level] = state.nextWaiter;
+	    else
+		state.prevWaiter.nextWaiter = state.nextWaiter;
+
+	    if (state.nextWaiter == null)
+		tail[level] = state.prevWaiter;
+	    else
+		state.nextWaiter.prevWaiter = state.prevWaiter;
+
+	    state.prevWaiter = state.nextWaiter = null;
+
+	    if (head[level] == null)
+		nonEmpty &= ~(1 << level);
+	}
+
+	/**
+	 * Recompute the priority this queue donates to its owner, and pass any
+	 * change on to the owner.
+	 */
+	void updateDonation() {
+	    if (!transferPriority)
+		return;
+
+	    int donation = highestLevel(nonEmpty);
+	    if (donation == donatedPriority)
+		return;
+
+	    int oldDonation = donatedPriority;
+	    donatedPriority = donation;
+
+	    if (owner != null)
+		owner.changeDonation(oldDonation, donation);
+	}
+
+	/**
+	 * Make the specified thread the owner of this queue, moving this
+	 * queue's donation from the previous owner to it.
+	 *
+	 * @param	state	the new owner, or <tt>null</tt> if none.
+	 */
+	void setOwner(ThreadState state) {
+	    if (!transferPriority || owner == state)
+		return;
+
+	    if (owner != null)
+		owner.changeDonation(donatedPriority, -1);
+
+	    owner = state;
+
+	    if (owner != null)
+		owner.changeDonation(-1, donatedPriority);
 	}
 
 	/**
@@ -168,6 +430,20 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The heads and tails of the FIFO lists, indexed by priority. */
+	private ThreadState[] head = new ThreadState[numLevels];
+	private ThreadState[] tail = new ThreadState[numLevels];
+	/** Bit <i>p</i> is set if the list for priority <i>p</i> is
+	 *  non-empty. */
+	private int nonEmpty = 0;
+	/** The priority donated to the owner, or -1 if none. */
+	private int donatedPriority = -1;
+	/** The thread that last acquired this queue, if it transfers
+	 *  priority. */
+	private ThreadState owner = null;
+	/** Orders threads by when they started waiting. */
+	private long nextSequence = 0;
     }
 
     /**
@@ -200,13 +476,14 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * Return the effective priority of the associated thread.
+	 * Return the effective priority of the associated thread. This is
+	 * kept up to date as priorities are set and donated, so it is never
+	 * recomputed here.
 	 *
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +497,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +513,13 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitSequence = waitQueue.nextSequence++;
+
+	    waitQueue.add(this);
+	    waitQueue.updateDonation();
 	}
 
 	/**
@@ -250,12 +533,71 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    if (waitingOn == waitQueue) {
+		waitQueue.remove(this);
+		waitingOn = null;
+		waitQueue.updateDonation();
+	    }
+
+	    waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Called when a queue owned by the associated thread changes the
+	 * priority it donates.
+	 *
+	 * @param	oldDonation	the priority donated until now, or -1.
+	 * @param	newDonation	the priority donated from now on, or -1.
+	 */
+	void changeDonation(int oldDonation, int newDonation) {
+	    if (oldDonation >= 0 && --donations[oldDonation] == 0)
+		donationMask &= ~(1 << oldDonation);
+	    if (newDonation >= 0 && donations[newDonation]++ == 0)
+		donationMask |= 1 << newDonation;
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority from the priority and the highest
+	 * donation. If it changed while this thread is waiting, move this
+	 * thread to its new level, which in turn may change what that queue
+	 * donates to its owner.
+	 */
+	private void updateEffectivePriority() {
+	    int effective = Math.max(priority, highestLevel(donationMask));
+	    if (effective == effectivePriority)
+		return;
+
+	    if (waitingOn == null) {
+		effectivePriority = effective;
+		return;
+	    }
+
+	    waitingOn.remove(this);
+	    effectivePriority = effective;
+	    waitingOn.add(this);
+	    waitingOn.updateDonation();
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The queue the associated thread is waiting on, if any. */
+	private PriorityQueue waitingOn = null;
+	/** The neighbors of the associated thread in <tt>waitingOn</tt>. */
+	private ThreadState prevWaiter = null, nextWaiter = null;
+	/** When the associated thread started waiting on
+	 *  <tt>waitingOn</tt>. */
+	private long waitSequence;
+
+	/** The number of owned queues donating each priority. */
+	private int[] donations = new int[numLevels];
+	/** Bit <i>p</i> is set if <tt>donations[p]</tt> is non-zero. */
+	private int donationMask = 0;
     }
 }
@@ -52,6 +52,18 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate a new thread queue for <tt>KThread</tt> to use as its ready
+     * queue. Schedulers that treat the ready queue differently from the
+     * queues of locks and semaphores can override this; by default it is the
+     * same as <tt>newThreadQueue(false)</tt>.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +166,105 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Set the deadline of the specified thread: the time, in ticks, by which
+     * it should have finished its current piece of work. Setting a new
+     * deadline, or <tt>noDeadline</tt>, declares the previous one finished.
+     * Schedulers that do not schedule by deadline ignore it.
+     *
+     * <p>
+     * Interrupts must be disabled.
+     *
+     * @param	thread		the thread whose deadline should be set.
+     * @param	deadline	the new deadline, or <tt>noDeadline</tt>.
+     */
+    public void setDeadline(KThread thread, long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Set the deadline of the current thread.
+     *
+     * @param	deadline	the new deadline, or <tt>noDeadline</tt>.
+     */
+    public void setDeadline(long deadline) {
+	setDeadline(KThread.currentThread(), deadline);
+    }
+
+    /**
+     * Get the deadline of the specified thread.
+     *
+     * <p>
+     * Interrupts must be disabled.
+     *
+     * @param	thread	the thread whose deadline should be returned.
+     * @return	the deadline of the specified thread, or
+     *		<tt>noDeadline</tt>.
+     */
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return noDeadline;
+    }
+
+    /**
+     * Get the deadline of the current thread.
+     *
+     * @return	the deadline of the current thread, or <tt>noDeadline</tt>.
+     */
+    public long getDeadline() {
+	return getDeadline(KThread.currentThread());
+    }
+
+    /** The deadline of a thread that has none. */
+    public static final long noDeadline = Long.MAX_VALUE;
+
+    /**
+     * Notify this scheduler that the specified thread is finishing, so that
+     * it can settle whatever the thread leaves behind, such as a deadline it
+     * never declared finished. Called by <tt>KThread.finish()</tt>, with
+     * interrupts disabled. By default, does nothing.
+     *
+     * @param	thread	the thread that is finishing.
+     */
+    public void threadFinishing(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Notify this scheduler of a timer interrupt, and decide whether the
+     * current thread should be preempted. Called by the alarm's timer
+     * interrupt handler, with interrupts disabled.
+     *
+     * <p>
+     * By default, the current thread is always preempted, so that threads
+     * share the CPU one timer period at a time. Schedulers with time quanta
+     * can override this to count the quantum down instead.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	return true;
+    }
+
+    /**
+     * Decide whether the current thread should yield right away to a thread
+     * that was just made ready. Called by interrupt handlers, such as the
+     * alarm's, after they wake threads up, with interrupts disabled.
+     *
+     * <p>
+     * By default, woken threads wait for the next timer interrupt.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean preemptionPending() {
+	return false;
+    }
+
+    /**
+     * Print statistics about the scheduling decisions this scheduler has
+     * made. Called when the machine halts. By default, prints nothing.
+     */
+    public void printStats() {
+    }
 }
@@ -21,6 +21,9 @@ public class ThreadedKernel extends Kernel {
         // set scheduler
         String schedulerName = Config.getString("ThreadedKernel.scheduler");
         scheduler = (Scheduler) Lib.constructObject(schedulerName);
+        Machine.addHaltNotificationHandler(new Runnable() {
+            public void run() { scheduler.printStats(); }
+        });
 
         // set fileSystem
         String fileSystemName = Config.getString("ThreadedKernel.fileSystem");
@@ -41,7 +44,8 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes, and the
+     * scheduler if it has a test of its own. Note that the
      * autograder never calls this method, so it is safe to put additional
      * tests here.
      */
@@ -60,6 +64,22 @@ public class ThreadedKernel extends Kernel {
         System.out.println("******** Alarm SelfTest **********");
         Alarm.selfTest();
         System.out.println("**********************************\n");
+        // a lottery scheduler is a priority scheduler with other rules
+        if (scheduler instanceof LotteryScheduler) {
+            System.out.println("******** LotteryScheduler SelfTest ********");
+            LotteryScheduler.selfTest();
+            System.out.println("*******************************************");
+        }
+        else if (scheduler instanceof PriorityScheduler) {
+            System.out.println("******** PriorityScheduler SelfTest ********");
+            PriorityScheduler.selfTest();
+            System.out.println("********************************************");
+        }
+        else if (scheduler instanceof EDFScheduler) {
+            System.out.println("******** EDFScheduler SelfTest ********");
+            EDFScheduler.selfTest();
+            System.out.println("***************************************");
+        }
         if (Machine.bank() != null) {
             ElevatorBank.selfTest();
         }
@@ -122,4 +142,7 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static MLFQScheduler dummy8 = null;
+    private static EDFScheduler dummy9 = null;
+    private static WorkStealingScheduler dummy10 = null;
 }
@@ -0,0 +1,232 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A scheduler with a run queue per simulated processor, and work stealing
+ * between them.
+ *
+ * <p>
+ * The ready queue is split into one run queue for each of the processors the
+ * machine simulates (see <tt>Machine.numProcessors</tt>). A processor looking
+ * for a thread to run dispatches the thread at the head of its own run queue.
+ * If its run queue is empty, it steals half of the threads from the first
+ * non-empty run queue after its own, and dispatches the first of them. Since
+ * run queues are FIFO, the thief takes the threads that have waited longest,
+ * from the head. If every run queue is empty, the processor runs its idle
+ * thread.
+ *
+ * <p>
+ * A thread that becomes ready goes on the run queue of the processor it last
+ * ran on, and a new thread on the run queue of the processor that forked it.
+ * So work stays where it was created until another processor runs out, and
+ * the statistics show how often that happens.
+ *
+ * <p>
+ * Queues other than the ready queue are FIFO. When the machine halts, the
+ * scheduler prints how many threads each processor dispatched and stole, and
+ * how many times it found nothing to run.
+ */
+public class WorkStealingScheduler extends Scheduler {
+    /**
+     * Allocate a new work-stealing scheduler.
+     */
+    public WorkStealingScheduler() {
+	numProcessors = Machine.interrupt().getNumProcessors();
+
+	dispatches = new long[numProcessors];
+	steals = new long[numProcessors];
+	stolen = new long[numProcessors];
+	idle = new long[numProcessors];
+    }
+
+    /**
+     * Allocate a new FIFO thread queue.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new FIFO thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FifoQueue();
+    }
+
+    /**
+     * Allocate the ready queue, made up of the processors' run queues.
+     *
+     * @return	a new ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return new RunQueues();
+    }
+
+    public void printStats() {
+	System.out.println("Work stealing:");
+	for (int i=0; i<numProcessors; i++) {
+	    System.out.println("  cpu " + i + ": dispatched " + dispatches[i] +
+			       ", steals " + steals[i] +
+			       ", threads stolen " + stolen[i] +
+			       ", idle " + idle[i]);
+	}
+    }
+
+    /**
+     * Return the processor the specified thread last ran on, or was created
+     * on.
+     */
+    private int getProcessor(KThread thread) {
+	// a new thread starts on the processor of the thread forking it
+	if (thread.schedulingState == null)
+	    setProcessor(thread, Machine.interrupt().getProcessor());
+
+	return ((int[]) thread.schedulingState)[0];
+    }
+
+    private void setProcessor(KThread thread, int processor) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new int[1];
+
+	((int[]) thread.schedulingState)[0] = processor;
+    }
+
+    /**
+     * The ready queue: one run queue per processor.
+     */
+    private class RunQueues extends ThreadQueue {
+	RunQueues() {
+	    runQueues = new ArrayList<ArrayDeque<KThread>>(numProcessors);
+	    for (int i=0; i<numProcessors; i++)
+		runQueues.add(new ArrayDeque<KThread>());
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    runQueues.get(getProcessor(thread)).addLast(thread);
+	}
+
+	/**
+	 * Dispatch a thread from the run queue of the processor that is
+	 * running, stealing one if it has none.
+	 *
+	 * @return	the thread to dispatch, or <tt>null</tt> if all the run
+	 *		queues are empty.
+	 */
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    int processor = Machine.interrupt().getProcessor();
+
+	    ArrayDeque<KThread> own = runQueues.get(processor);
+	    if (own.isEmpty() && !steal(processor)) {
+		idle[processor]++;
+		return null;
+	    }
+
+	    KThread thread = own.removeFirst();
+	    setProcessor(thread, processor);
+	    dispatches[processor]++;
+
+	    return thread;
+	}
+
+	/**
+	 * Move the first half of the threads, rounded up, from the first
+	 * non-empty run queue after the specified processor's to its own,
+	 * keeping their order.
+	 *
+	 * @return	<tt>true</tt> if any threads were stolen.
+	 */
+	private boolean steal(int thief) {
+	    for (int i=1; i<numProcessors; i++) {
+		int victim = (thief+i) % numProcessors;
+		ArrayDeque<KThread> queue = runQueues.get(victim);
+		if (queue.isEmpty())
+		    continue;
+
+		int count = (queue.size()+1) / 2;
+		for (int j=0; j<count; j++) {
+		    KThread thread = queue.removeFirst();
+		    setProcessor(thread, thief);
+		    runQueues.get(thief).addLast(thread);
+		}
+
+		steals[thief]++;
+		stolen[thief] += count;
+		return true;
+	    }
+
+	    return false;
+	}
+
+	/**
+	 * The first thread runs on processor 0 without having waited.
+	 */
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    setProcessor(thread, 0);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numProcessors; i++) {
+		System.out.print("cpu " + i + ":");
+		for (Iterator<KThread> it=runQueues.get(i).iterator(); it.hasNext(); )
+		    System.out.print(" " + it.next());
+		System.out.println();
+	    }
+	}
+
+	private List<ArrayDeque<KThread>> runQueues;
+    }
+
+    private class FifoQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    waitQueue.add(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (waitQueue.isEmpty())
+		return null;
+
+	    return waitQueue.removeFirst();
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waitQueue.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<KThread> i=waitQueue.iterator(); i.hasNext(); )
+		System.out.print(i.next() + " ");
+	}
+
+	private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+    }
+
+    private int numProcessors;
+
+    /** The number of threads each processor dispatched. */
+    private long[] dispatches;
+    /** The number of times each processor stole threads. */
+    private long[] steals;
+    /** The number of threads each processor stole. */
+    private long[] stolen;
+    /** The number of times each processor found no thread to run. */
+    private long[] idle;
+}
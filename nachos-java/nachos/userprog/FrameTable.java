@@ -0,0 +1,181 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+
+/**
+ * Allocates the pages of physical memory to user processes, and lets
+ * processes running the same executable share the pages loaded from it.
+ *
+ * <p>
+ * Every page in use has a reference count, the number of page table entries
+ * that map it. A page loaded from a COFF section can be published under the
+ * name of the executable and its virtual page number, so that the next
+ * process to load the same page maps the published page instead of reading
+ * the file again. Read-only sections stay shared. Writable sections are
+ * shared copy-on-write: they are mapped read-only, and the first write to
+ * such a page gives the writer a private copy through
+ * <tt>makePrivate()</tt>. A page goes back on the free list when its last
+ * reference is released.
+ */
+public class FrameTable {
+    /**
+     * Allocate a new frame table, with every page of physical memory free.
+     *
+     * @param	numPhysPages	the number of pages of physical memory.
+     */
+    public FrameTable(int numPhysPages) {
+	refCount = new int[numPhysPages];
+	publishedKey = new String[numPhysPages];
+
+	freeFrames = new int[numPhysPages];
+	for (int i=0; i<numPhysPages; i++)
+	    freeFrames[i] = numPhysPages-1-i;
+	numFreeFrames = numPhysPages;
+    }
+
+    /**
+     * Allocate a free page of physical memory, with a reference count of
+     * one. The contents of the page are left as they were.
+     *
+     * @return	the physical page number, or -1 if no page is free.
+     */
+    public int allocate() {
+	lock.acquire();
+	int ppn = allocateLocked();
+	lock.release();
+
+	return ppn;
+    }
+
+    /**
+     * Drop one reference to a page of physical memory, and free the page if
+     * it was the last one.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void release(int ppn) {
+	lock.acquire();
+
+	Lib.assertTrue(refCount[ppn] > 0);
+	if (--refCount[ppn] == 0) {
+	    unpublish(ppn);
+	    freeFrames[numFreeFrames++] = ppn;
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Return a page holding the specified page of an executable, with a new
+     * reference to it. If another process has published the page, it is
+     * returned. Otherwise a free page is allocated, filled by
+     * <tt>section.loadPage()</tt>, and published.
+     *
+     * @param	executable	the name of the executable.
+     * @param	section		the section of the executable holding the
+     *				page.
+     * @param	spn		the page number within the section.
+     * @return	the physical page number, or -1 if no page is free.
+     */
+    public int share(String executable, CoffSection section, int spn) {
+	String key = executable + ":" + (section.getFirstVPN() + spn);
+
+	lock.acquire();
+
+	int ppn;
+	Integer published = publishedPages.get(key);
+	if (published != null) {
+	    ppn = published.intValue();
+	    refCount[ppn]++;
+	}
+	else {
+	    ppn = allocateLocked();
+	    if (ppn != -1) {
+		section.loadPage(spn, ppn);
+		publishedPages.put(key, ppn);
+		publishedKey[ppn] = key;
+	    }
+	}
+
+	lock.release();
+
+	return ppn;
+    }
+
+    /**
+     * Give up one reference to a page so that it can be written without
+     * affecting anyone else. If the caller holds the only reference, the page
+     * is withdrawn from sharing and returned as it is. Otherwise the caller's
+     * reference is moved to a new page holding a copy.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the physical page number the caller may now write, or -1 if
+     *		a copy was needed and no page is free.
+     */
+    public int makePrivate(int ppn) {
+	lock.acquire();
+
+	Lib.assertTrue(refCount[ppn] > 0);
+
+	int privatePPN;
+	if (refCount[ppn] == 1) {
+	    unpublish(ppn);
+	    privatePPN = ppn;
+	}
+	else {
+	    privatePPN = allocateLocked();
+	    if (privatePPN != -1) {
+		byte[] memory = Machine.processor().getMemory();
+		System.arraycopy(memory, ppn*pageSize,
+				 memory, privatePPN*pageSize, pageSize);
+		refCount[ppn]--;
+	    }
+	}
+
+	lock.release();
+
+	return privatePPN;
+    }
+
+    /**
+     * Return the number of pages of physical memory that are free.
+     *
+     * @return	the number of free pages.
+     */
+    public int getNumFreeFrames() {
+	return numFreeFrames;
+    }
+
+    private int allocateLocked() {
+	if (numFreeFrames == 0)
+	    return -1;
+
+	int ppn = freeFrames[--numFreeFrames];
+	refCount[ppn] = 1;
+
+	return ppn;
+    }
+
+    private void unpublish(int ppn) {
+	if (publishedKey[ppn] != null) {
+	    publishedPages.remove(publishedKey[ppn]);
+	    publishedKey[ppn] = null;
+	}
+    }
+
+    private Lock lock = new Lock();
+
+    private int[] freeFrames;
+    private int numFreeFrames;
+
+    private int[] refCount;
+    private String[] publishedKey;
+    private HashMap<String, Integer> publishedPages =
+	new HashMap<String, Integer>();
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -16,13 +16,14 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console and a frame
+     * table, and sets the processor's exception handler.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+	frameTable = new FrameTable(Machine.processor().getNumPhysPages());
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -110,6 +111,9 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** Globally accessible reference to the physical page allocator. */
+    public static FrameTable frameTable;
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
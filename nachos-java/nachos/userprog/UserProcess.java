@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 
 import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -23,10 +25,6 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
-	int numPhysPages = Machine.processor().getNumPhysPages();
-	pageTable = new TranslationEntry[numPhysPages];
-	for (int i=0; i<numPhysPages; i++)
-	    pageTable[i] = new TranslationEntry(i,i, true,false,false,false);
     }
     
     /**
@@ -89,12 +87,41 @@ public class UserProcess {
     public String readVirtualMemoryString(int vaddr, int maxLength) {
 	Lib.assertTrue(maxLength >= 0);
 
-	byte[] bytes = new byte[maxLength+1];
-
-	int bytesRead = readVirtualMemory(vaddr, bytes);
+	byte[] memory = Machine.processor().getMemory();
 
-	for (int length=0; length<bytesRead; length++) {
-	    if (bytes[length] == 0)
+	// scan main memory a page at a time, and only copy the string out if
+	// it runs past the end of the page it starts in
+	byte[] bytes = null;
+	int length = 0;
+	while (length <= maxLength) {
+	    TranslationEntry entry = translate(vaddr+length, false);
+	    if (entry == null)
+		return null;
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr+length);
+	    int start = entry.ppn*pageSize + pageOffset;
+	    int count = Math.min(maxLength+1-length, pageSize-pageOffset);
+
+	    int end = start;
+	    while (end < start+count && memory[end] != 0)
+		end++;
+	    boolean terminated = (end < start+count);
+
+	    if (terminated && bytes == null)
+		return new String(memory, start, end-start);
+
+	    if (bytes == null)
+		bytes = new byte[Math.min(maxLength+1, 2*pageSize)];
+	    else if (bytes.length < length+(end-start))
+		bytes = Arrays.copyOf(bytes,
+				      Math.min(maxLength+1,
+					       Math.max(2*bytes.length,
+							length+(end-start))));
+
+	    System.arraycopy(memory, start, bytes, length, end-start);
+	    length += end-start;
+
+	    if (terminated)
 		return new String(bytes, 0, length);
 	}
 
@@ -132,13 +159,19 @@ public class UserProcess {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
+	int amount = 0;
+	while (amount < length) {
+	    TranslationEntry entry = translate(vaddr+amount, false);
+	    if (entry == null)
+		break;
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int count = Math.min(length-amount, pageSize-pageOffset);
+	    System.arraycopy(memory, entry.ppn*pageSize + pageOffset,
+			     data, offset+amount, count);
+	    amount += count;
+	}
 
 	return amount;
     }
@@ -175,17 +208,120 @@ public class UserProcess {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int amount = 0;
+	while (amount < length) {
+	    TranslationEntry entry = translate(vaddr+amount, true);
+	    if (entry == null)
+		break;
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int count = Math.min(length-amount, pageSize-pageOffset);
+	    System.arraycopy(data, offset+amount,
+			     memory, entry.ppn*pageSize + pageOffset, count);
+	    amount += count;
+	}
 
 	return amount;
     }
 
+    /**
+     * Transfer data from this process's virtual memory to the remaining space
+     * in the specified buffer, advancing the buffer's position past the bytes
+     * transferred. Like <tt>readVirtualMemory(vaddr, data, offset,
+     * length)</tt>, stops at the first byte that cannot be read.
+     *
+     * @param	vaddr	the first byte of virtual memory to read.
+     * @param	data	the buffer where the data will be stored.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int readVirtualMemory(int vaddr, ByteBuffer data) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int length = data.remaining();
+	int amount = 0;
+	while (amount < length) {
+	    TranslationEntry entry = translate(vaddr+amount, false);
+	    if (entry == null)
+		break;
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int count = Math.min(length-amount, pageSize-pageOffset);
+	    data.put(memory, entry.ppn*pageSize + pageOffset, count);
+	    amount += count;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Transfer the remaining data in the specified buffer to this process's
+     * virtual memory, advancing the buffer's position past the bytes
+     * transferred. Like <tt>writeVirtualMemory(vaddr, data, offset,
+     * length)</tt>, stops at the first byte that cannot be written.
+     *
+     * @param	vaddr	the first byte of virtual memory to write.
+     * @param	data	the buffer containing the data to transfer.
+     * @return	the number of bytes successfully transferred.
+     */
+    public int writeVirtualMemory(int vaddr, ByteBuffer data) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int length = data.remaining();
+	int amount = 0;
+	while (amount < length) {
+	    TranslationEntry entry = translate(vaddr+amount, true);
+	    if (entry == null)
+		break;
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int count = Math.min(length-amount, pageSize-pageOffset);
+	    data.get(memory, entry.ppn*pageSize + pageOffset, count);
+	    amount += count;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Return the page table entry that maps the specified virtual address,
+     * marking it used, and also dirty if <i>writing</i>. A copy-on-write page
+     * that is about to be written is first given a private copy.
+     *
+     * @param	vaddr	the virtual address.
+     * @param	writing	<tt>true</tt> if the address is about to be written.
+     * @return	the page table entry, or <tt>null</tt> if the address is not
+     *		mapped, or is read-only and <i>writing</i> is <tt>true</tt>.
+     */
+    private TranslationEntry translate(int vaddr, boolean writing) {
+	if (vaddr < 0)
+	    return null;
+
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (pageTable == null || vpn >= pageTable.length ||
+	    pageTable[vpn] == null)
+	    return null;
+
+	// bringing the page in or copying it may let another process run and
+	// take the page away again, so check once more before using it
+	TranslationEntry entry = pageTable[vpn];
+	while (!entry.valid || (writing && entry.readOnly)) {
+	    if (!entry.valid) {
+		if (!pageIn(vpn))
+		    return null;
+	    }
+	    else if (!breakCopyOnWrite(vpn)) {
+		return null;
+	    }
+	}
+
+	entry.used = true;
+	if (writing)
+	    entry.dirty = true;
+
+	return entry;
+    }
+
     /**
      * Load the executable with the specified name into this process, and
      * prepare to pass it the specified arguments. Opens the executable, reads
@@ -198,6 +334,8 @@ public class UserProcess {
      */
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
+	executableName = name;
+
 	
 	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
 	if (executable == null) {
@@ -259,17 +397,17 @@ public class UserProcess {
 
 	this.argc = args.length;
 	this.argv = entryOffset;
-	
+
+	// lay out the argv[] pointers and the strings, then copy them in at once
+	byte[] argsPage = new byte[argsSize];
+	int stringStart = args.length*4;
 	for (int i=0; i<argv.length; i++) {
-	    byte[] stringOffsetBytes = Lib.bytesFromInt(stringOffset);
-	    Lib.assertTrue(writeVirtualMemory(entryOffset,stringOffsetBytes) == 4);
-	    entryOffset += 4;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset, argv[i]) ==
-		       argv[i].length);
-	    stringOffset += argv[i].length;
-	    Lib.assertTrue(writeVirtualMemory(stringOffset,new byte[] { 0 }) == 1);
-	    stringOffset += 1;
+	    Lib.bytesFromInt(argsPage, i*4, stringOffset);
+	    System.arraycopy(argv[i], 0, argsPage, stringStart, argv[i].length);
+	    stringStart += argv[i].length + 1;
+	    stringOffset += argv[i].length + 1;
 	}
+	Lib.assertTrue(writeVirtualMemory(entryOffset, argsPage) == argsSize);
 
 	return true;
     }
@@ -288,7 +426,11 @@ public class UserProcess {
 	    return false;
 	}
 
-	// load sections
+	pageTable = new TranslationEntry[numPages];
+	copyOnWrite = new boolean[numPages];
+
+	// load sections, sharing pages with other processes running the same
+	// executable
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
 	    
@@ -298,20 +440,98 @@ public class UserProcess {
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
+		int ppn = UserKernel.frameTable.share(executableName, section,
+						      i);
+		if (ppn == -1)
+		    return loadFailed();
+
+		pageTable[vpn] = new TranslationEntry(vpn, ppn, true, true,
+						      false, false);
+		copyOnWrite[vpn] = !section.isReadOnly();
 	    }
 	}
+
+	// the stack and argument pages are private, and start out zeroed
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn] != null)
+		continue;
+
+	    int ppn = UserKernel.frameTable.allocate();
+	    if (ppn == -1)
+		return loadFailed();
+
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+
+	    pageTable[vpn] = new TranslationEntry(vpn, ppn, true, false,
+						  false, false);
+	}
 	
 	return true;
     }
 
+    private boolean loadFailed() {
+	unloadSections();
+	coff.close();
+	Lib.debug(dbgProcess, "\tinsufficient physical memory");
+	return false;
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	if (pageTable == null)
+	    return;
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn] != null && pageTable[vpn].valid)
+		UserKernel.frameTable.release(pageTable[vpn].ppn);
+	    pageTable[vpn] = null;
+	}
     }    
 
+    /**
+     * Bring a page of this process that is not in physical memory into it,
+     * and make its page table entry valid. Called when the kernel touches
+     * such a page on behalf of the process. <tt>UserProcess</tt> loads every
+     * page in <tt>loadSections()</tt>, so there is never one to bring in.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is now in physical memory.
+     */
+    protected boolean pageIn(int vpn) {
+	return false;
+    }
+
+    /**
+     * Give a copy-on-write page a private copy that this process can write.
+     * Called when the page is about to be written, by the process or by the
+     * kernel on its behalf.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is now writable, or <tt>false</tt> if
+     *		it is not a copy-on-write page or no physical page was free.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	if (copyOnWrite == null || vpn < 0 || vpn >= copyOnWrite.length ||
+	    !copyOnWrite[vpn])
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+	int ppn = UserKernel.frameTable.makePrivate(entry.ppn);
+	if (ppn == -1) {
+	    Lib.debug(dbgProcess, "\tno physical memory for copy-on-write");
+	    return false;
+	}
+
+	entry.ppn = ppn;
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+
+	return true;
+    }
+
     /**
      * Initialize the processor's registers in preparation for running the
      * program loaded into this process. Set the PC register to point at the
@@ -422,19 +642,45 @@ public class UserProcess {
 	    processor.writeRegister(Processor.regV0, result);
 	    processor.advancePC();
 	    break;				       
+
+	case Processor.exceptionReadOnly:
+	    // retry the write once it has a private copy of the page
+	    if (breakCopyOnWrite(Processor.pageFromAddress(
+		    processor.readRegister(Processor.regBadVAddr))))
+		break;
+	    // otherwise, a write to a page that really is read-only
+	    handleUnexpectedException(cause);
+	    break;
 				       
 	default:
-	    Lib.debug(dbgProcess, "Unexpected exception: " +
-		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    handleUnexpectedException(cause);
 	}
     }
 
+    /**
+     * Handle an exception that this process cannot recover from.
+     *
+     * @param	cause	the user exception that occurred.
+     */
+    private void handleUnexpectedException(int cause) {
+	Lib.debug(dbgProcess, "Unexpected exception: " +
+		  Processor.exceptionNames[cause]);
+	Lib.assertNotReached("Unexpected exception");
+    }
+
     /** The program being run by this process. */
     protected Coff coff;
 
+    /** The name of the file containing the program. */
+    protected String executableName;
+
     /** This process's page table. */
     protected TranslationEntry[] pageTable;
+    /**
+     * Which pages are shared copy-on-write. Their page table entries are
+     * read-only until the first write gives this process its own copy.
+     */
+    protected boolean[] copyOnWrite;
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
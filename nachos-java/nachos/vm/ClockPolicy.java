@@ -0,0 +1,42 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The clock, or second-chance, replacement policy. A hand sweeps physical
+ * memory in order. A page that has been used since the hand last passed it
+ * has its used bit cleared and is passed over; the first page that has not
+ * is reclaimed.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public int findVictim(InvertedPageTable table) {
+	int numPhysPages = table.getNumPhysPages();
+
+	// the second time around, every used bit has been cleared
+	for (int i=0; i<2*numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+
+	    if (!table.canReclaim(ppn))
+		continue;
+
+	    if (table.isUsed(ppn))
+		table.clearUsed(ppn);
+	    else
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,210 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.ArrayList;
+
+/**
+ * Records, for every page of physical memory, which processes map it, at
+ * which virtual page, and how many times it is pinned. Used to choose pages
+ * of physical memory to reclaim, and to find the page table entries that
+ * must be invalidated when one is reclaimed.
+ *
+ * <p>
+ * A page loaded from a COFF section may be shared by several processes
+ * running the same executable (see <tt>FrameTable</tt>). They all map it at
+ * the same virtual page, so a page has one virtual page number but may have
+ * several owners. A page is used if any of its owners has used it since its
+ * used bit was last cleared.
+ *
+ * <p>
+ * The used and dirty bits are read from the owners' page tables. The bits the
+ * processor has set in the TLB since they were last copied back are not seen
+ * until <tt>VMProcess.syncTLB()</tt> is called.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table, with no page of physical memory
+     * mapped.
+     *
+     * @param	numPhysPages	the number of pages of physical memory.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	frames = new Frame[numPhysPages];
+	for (int i=0; i<numPhysPages; i++)
+	    frames[i] = new Frame();
+    }
+
+    /**
+     * Return the number of pages of physical memory.
+     *
+     * @return	the number of pages of physical memory.
+     */
+    public int getNumPhysPages() {
+	return frames.length;
+    }
+
+    /**
+     * Record that a process maps a page of physical memory.
+     *
+     * @param	ppn	the physical page number.
+     * @param	owner	the process mapping the page.
+     * @param	vpn	the virtual page at which it maps the page.
+     */
+    public void map(int ppn, VMProcess owner, int vpn) {
+	Frame frame = frames[ppn];
+	Lib.assertTrue(frame.owners.isEmpty() || frame.vpn == vpn);
+
+	frame.owners.add(owner);
+	frame.vpn = vpn;
+    }
+
+    /**
+     * Record that a process no longer maps a page of physical memory.
+     *
+     * @param	ppn	the physical page number.
+     * @param	owner	the process that mapped the page.
+     */
+    public void unmap(int ppn, VMProcess owner) {
+	Lib.assertTrue(frames[ppn].owners.remove(owner));
+    }
+
+    /**
+     * Return the processes that map a page of physical memory.
+     *
+     * @param	ppn	the physical page number.
+     * @return	a new array of the processes mapping the page.
+     */
+    public VMProcess[] getOwners(int ppn) {
+	return frames[ppn].owners.toArray(new VMProcess[0]);
+    }
+
+    /**
+     * Return the virtual page at which the owners of a page of physical
+     * memory map it.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the virtual page number.
+     */
+    public int getVPN(int ppn) {
+	return frames[ppn].vpn;
+    }
+
+    /**
+     * Test whether any process maps a page of physical memory.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is mapped.
+     */
+    public boolean isMapped(int ppn) {
+	return !frames[ppn].owners.isEmpty();
+    }
+
+    /**
+     * Keep a page of physical memory from being reclaimed until it is
+     * unpinned. Pins nest.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void pin(int ppn) {
+	frames[ppn].pinCount++;
+    }
+
+    /**
+     * Undo one call to <tt>pin()</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void unpin(int ppn) {
+	Lib.assertTrue(frames[ppn].pinCount > 0);
+	frames[ppn].pinCount--;
+    }
+
+    /**
+     * Test whether a page of physical memory is pinned.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is pinned.
+     */
+    public boolean isPinned(int ppn) {
+	return frames[ppn].pinCount > 0;
+    }
+
+    /**
+     * Test whether any owner of a page of physical memory has used it since
+     * the page's used bit was last cleared.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page has been used.
+     */
+    public boolean isUsed(int ppn) {
+	Frame frame = frames[ppn];
+	for (VMProcess owner : frame.owners) {
+	    if (owner.getPageTableEntry(frame.vpn).used)
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Clear the used bit of a page of physical memory in every owner's page
+     * table.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void clearUsed(int ppn) {
+	Frame frame = frames[ppn];
+	for (VMProcess owner : frame.owners)
+	    owner.getPageTableEntry(frame.vpn).used = false;
+    }
+
+    /**
+     * Test whether a page of physical memory has been written since it was
+     * loaded, so that it must be written to swap before it is reclaimed.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is dirty.
+     */
+    public boolean isDirty(int ppn) {
+	Frame frame = frames[ppn];
+	for (VMProcess owner : frame.owners) {
+	    if (owner.getPageTableEntry(frame.vpn).dirty)
+		return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Test whether a page of physical memory can be reclaimed now: it is
+     * mapped, not pinned, and every owner has somewhere to keep its contents
+     * (see <tt>VMProcess.canPageOut()</tt>).
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page can be reclaimed.
+     */
+    public boolean canReclaim(int ppn) {
+	Frame frame = frames[ppn];
+	if (frame.owners.isEmpty() || frame.pinCount > 0)
+	    return false;
+
+	for (VMProcess owner : frame.owners) {
+	    if (!owner.canPageOut(frame.vpn))
+		return false;
+	}
+
+	return true;
+    }
+
+    private static class Frame {
+	ArrayList<VMProcess> owners = new ArrayList<VMProcess>(1);
+	int vpn = -1;
+	int pinCount = 0;
+    }
+
+    private Frame[] frames;
+}
@@ -0,0 +1,57 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * An approximation of least-recently-used replacement by aging. Every page
+ * has an age counter. Each time a page must be reclaimed, every counter is
+ * shifted right one bit, the page's used bit is shifted in at the top and
+ * then cleared, and the page with the smallest counter is reclaimed. A page
+ * used in any of the last 32 reclamations therefore beats one that was not,
+ * and more recent use counts for more.
+ *
+ * <p>
+ * Real aging samples the used bits on every clock tick. Here they are only
+ * sampled when memory is short, which is when the history matters, and
+ * which costs nothing while every process fits.
+ */
+public class LRUApproxPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new LRU-approximating policy.
+     */
+    public LRUApproxPolicy() {
+	age = new int[Machine.processor().getNumPhysPages()];
+    }
+
+    public void pageMapped(int ppn) {
+	// a page just brought in is about to be used
+	age[ppn] = 0x80000000;
+    }
+
+    public int findVictim(InvertedPageTable table) {
+	int victim = -1;
+
+	for (int ppn=0; ppn<table.getNumPhysPages(); ppn++) {
+	    if (!table.isMapped(ppn))
+		continue;
+
+	    age[ppn] >>>= 1;
+	    if (table.isUsed(ppn)) {
+		age[ppn] |= 0x80000000;
+		table.clearUsed(ppn);
+	    }
+
+	    if (table.canReclaim(ppn) &&
+		(victim == -1 ||
+		 Integer.compareUnsigned(age[ppn], age[victim]) < 0))
+		victim = ppn;
+	}
+
+	return victim;
+    }
+
+    private int[] age;
+}
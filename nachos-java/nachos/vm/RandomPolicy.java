@@ -0,0 +1,33 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Reclaims a page chosen at random from the pages that can be reclaimed. Uses
+ * the Nachos random number generator, so a run is repeated exactly by
+ * running it again with the same <tt>-s</tt> seed. Useful as a baseline for
+ * the other policies.
+ */
+public class RandomPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new random policy.
+     */
+    public RandomPolicy() {
+    }
+
+    public int findVictim(InvertedPageTable table) {
+	int numPhysPages = table.getNumPhysPages();
+	int start = Lib.random(numPhysPages);
+
+	for (int i=0; i<numPhysPages; i++) {
+	    int ppn = (start+i) % numPhysPages;
+	    if (table.canReclaim(ppn))
+		return ppn;
+	}
+
+	return -1;
+    }
+}
@@ -0,0 +1,48 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Chooses the pages of physical memory that <tt>VMKernel</tt> reclaims when
+ * none is free. The policy is specified by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * A policy only chooses; the kernel invalidates the page table entries that
+ * map the page and frees it. A policy should only choose a page for which
+ * <tt>InvertedPageTable.canReclaim()</tt> returns <tt>true</tt>.
+ *
+ * @see	nachos.vm.ClockPolicy
+ * @see	nachos.vm.WSClockPolicy
+ * @see	nachos.vm.LRUApproxPolicy
+ * @see	nachos.vm.RandomPolicy
+ */
+public abstract class ReplacementPolicy {
+    /**
+     * Allocate a new replacement policy.
+     */
+    public ReplacementPolicy() {
+    }
+
+    /**
+     * Called when a page of physical memory is mapped by a process, after it
+     * has been recorded in the inverted page table. Policies that keep their
+     * own history of a page start it here.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void pageMapped(int ppn) {
+    }
+
+    /**
+     * Choose a page of physical memory to reclaim.
+     *
+     * @param	table	the inverted page table.
+     * @return	the physical page number of the page to reclaim, or -1 if no
+     *		page can be reclaimed.
+     */
+    public abstract int findVictim(InvertedPageTable table);
+}
@@ -0,0 +1,99 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.BitSet;
+
+/**
+ * Allocates the slots of the paging device to the pages that are written
+ * out to it, keeping a bitmap of the slots in use.
+ *
+ * <p>
+ * A page keeps its slot after it is read back in, for as long as its owner
+ * exists. While the page stays clean, the slot still holds its contents, so
+ * reclaiming it again costs no write; a page is only written out when it has
+ * been written since it was last read in or written out.
+ */
+public class SwapSpace {
+    /**
+     * Allocate a new swap space on the specified device, with every slot free.
+     *
+     * @param	device	the paging device.
+     */
+    public SwapSpace(SwapDevice device) {
+	this.device = device;
+
+	inUse = new BitSet(device.getNumSlots());
+	numFreeSlots = device.getNumSlots();
+    }
+
+    /**
+     * Allocate a free slot.
+     *
+     * @return	the slot number, or -1 if every slot is in use.
+     */
+    public int allocate() {
+	if (numFreeSlots == 0)
+	    return -1;
+
+	int slot = inUse.nextClearBit(0);
+
+	inUse.set(slot);
+	numFreeSlots--;
+
+	return slot;
+    }
+
+    /**
+     * Free a slot allocated by <tt>allocate()</tt>.
+     *
+     * @param	slot	the slot number.
+     */
+    public void free(int slot) {
+	Lib.assertTrue(inUse.get(slot));
+
+	inUse.clear(slot);
+	numFreeSlots++;
+    }
+
+    /**
+     * Return the number of slots that are free.
+     *
+     * @return	the number of free slots.
+     */
+    public int getNumFreeSlots() {
+	return numFreeSlots;
+    }
+
+    /**
+     * Write a page of physical memory to a slot.
+     *
+     * @param	slot	the slot number.
+     * @param	ppn	the physical page number.
+     */
+    public void writePage(int slot, int ppn) {
+	Lib.assertTrue(inUse.get(slot));
+
+	device.writePage(slot, ppn);
+    }
+
+    /**
+     * Read a slot into a page of physical memory.
+     *
+     * @param	slot	the slot number.
+     * @param	ppn	the physical page number.
+     */
+    public void readPage(int slot, int ppn) {
+	Lib.assertTrue(inUse.get(slot));
+
+	device.readPage(slot, ppn);
+    }
+
+    private SwapDevice device;
+
+    private BitSet inUse;
+    private int numFreeSlots;
+}
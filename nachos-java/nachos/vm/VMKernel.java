@@ -17,10 +17,40 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Creates the inverted page table, the
+     * replacement policy named by <tt>VMKernel.replacementPolicy</tt>, and a
+     * swap space if the machine has a paging device. The paging statistics
+     * are printed when the machine halts.
+     *
+     * <p>
+     * Only a single processor is supported: the kernel keeps track of one
+     * TLB, and does not remove stale translations from other processors'
+     * TLBs.
      */
     public void initialize(String[] args) {
+	Lib.assertTrue(Machine.interrupt().getNumProcessors() == 1,
+		       "VMKernel supports only one processor");
+
 	super.initialize(args);
+
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
+
+	String policyName = Config.getString("VMKernel.replacementPolicy",
+					     "nachos.vm.ClockPolicy");
+	replacementPolicy = (ReplacementPolicy) Lib.constructObject(policyName);
+
+	if (Machine.swap() != null)
+	    swapSpace = new SwapSpace(Machine.swap());
+
+	pagingLock = new Lock();
+
+	if (Machine.processor().hasTLB())
+	    asidOwners = new VMProcess[Processor.numASIDs];
+
+	Machine.addHaltNotificationHandler(new Runnable() {
+		public void run() { printPagingStats(); }
+	    });
     }
 
     /**
@@ -44,6 +74,149 @@ public class VMKernel extends UserKernel {
 	super.terminate();
     }
 
+    /**
+     * Print how often pages had to be brought into physical memory, under
+     * which replacement policy. The fault rate is given both per TLB miss
+     * and per thousand ticks, so that runs of the same workload under
+     * different policies can be compared.
+     */
+    public static void printPagingStats() {
+	long ticks = Machine.timer().getTime();
+
+	double perMiss =
+	    (numTLBMisses == 0) ? 0 : 100.0 * numPageFaults / numTLBMisses;
+	double perKiloTick = (ticks == 0) ? 0 : 1000.0 * numPageFaults / ticks;
+
+	System.out.println("VM " + replacementPolicy.getClass().getName() +
+			   ": page faults " + numPageFaults +
+			   ", reclaimed " + numReclaimed +
+			   ", TLB misses " + numTLBMisses);
+	System.out.println("VM swap: pages written " + numSwapWrites +
+			   ", read " + numSwapReads);
+	System.out.println(String.format("VM fault rate: %.1f%% of TLB misses," +
+					 " %.3f per 1000 ticks",
+					 perMiss, perKiloTick));
+    }
+
+    /**
+     * Reclaim a page of physical memory chosen by the replacement policy.
+     * Every page table entry mapping it is invalidated, and it is returned
+     * to the frame table. Must be called with <tt>pagingLock</tt> held.
+     *
+     * @return	<tt>true</tt> if a page was reclaimed, or <tt>false</tt> if no
+     *		page can be.
+     */
+    static boolean reclaimPage() {
+	Lib.assertTrue(pagingLock.isHeldByCurrentThread());
+
+	VMProcess.syncTLB();
+
+	int ppn = replacementPolicy.findVictim(invertedPageTable);
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno page can be reclaimed");
+	    return false;
+	}
+
+	Lib.assertTrue(invertedPageTable.canReclaim(ppn));
+
+	int vpn = invertedPageTable.getVPN(ppn);
+	VMProcess[] owners = invertedPageTable.getOwners(ppn);
+
+	Lib.debug(dbgVM, "\treclaiming frame " + ppn + " (page " + vpn +
+		  ", " + owners.length + " owners)");
+
+	for (int i=0; i<owners.length; i++) {
+	    invertedPageTable.unmap(ppn, owners[i]);
+	    owners[i].evictPage(vpn);
+	}
+
+	numReclaimed++;
+	return true;
+    }
+
+    /**
+     * Give a process an address space identifier of its own, so that its
+     * translations can stay in the TLB while other processes run. Identifier
+     * 0 is never given out: a process that gets it (because every other one
+     * is taken, or the machine has no TLB) has its translations flushed from
+     * the TLB on every context switch instead.
+     *
+     * @param	process	the process to give an identifier.
+     * @return	the identifier, or 0 if none is free.
+     */
+    static int allocateASID(VMProcess process) {
+	if (asidOwners == null)
+	    return 0;
+
+	for (int i=0; i<asidOwners.length; i++) {
+	    int asid = 1 + (nextASID+i) % (asidOwners.length-1);
+	    if (asidOwners[asid] == null) {
+		asidOwners[asid] = process;
+		nextASID = asid;
+		return asid;
+	    }
+	}
+
+	return 0;
+    }
+
+    /**
+     * Free an address space identifier returned by <tt>allocateASID()</tt>.
+     * The TLB must no longer hold any translation tagged with it.
+     *
+     * @param	asid	the identifier, which may be 0.
+     */
+    static void freeASID(int asid) {
+	if (asid != 0) {
+	    Lib.assertTrue(asidOwners[asid] != null);
+	    asidOwners[asid] = null;
+	}
+    }
+
+    /**
+     * Return the process an address space identifier was given to.
+     *
+     * @param	asid	a nonzero identifier.
+     * @return	the process, or <tt>null</tt> if the identifier is free.
+     */
+    static VMProcess getASIDOwner(int asid) {
+	return asidOwners[asid];
+    }
+
+    /** Globally accessible reference to the inverted page table. */
+    public static InvertedPageTable invertedPageTable;
+
+    /** Globally accessible reference to the page replacement policy. */
+    public static ReplacementPolicy replacementPolicy;
+
+    /**
+     * Globally accessible reference to the swap space, or <tt>null</tt> if
+     * the machine has no paging device.
+     */
+    public static SwapSpace swapSpace = null;
+
+    /**
+     * Held while page tables, the TLB, and the inverted page table are being
+     * changed.
+     */
+    public static Lock pagingLock;
+
+    /** The process given each address space identifier, if any. */
+    private static VMProcess[] asidOwners = null;
+    /** The address space identifier given out most recently. */
+    private static int nextASID = 0;
+
+    /** Number of pages brought into physical memory by processes. */
+    static int numPageFaults = 0;
+    /** Number of TLB misses handled. */
+    static int numTLBMisses = 0;
+    /** Number of pages reclaimed by the replacement policy. */
+    static int numReclaimed = 0;
+    /** Number of pages written to swap. */
+    static int numSwapWrites = 0;
+    /** Number of pages read from swap. */
+    static int numSwapReads = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
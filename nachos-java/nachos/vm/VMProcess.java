@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -18,37 +20,419 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. The translations of a process
+     * with an address space identifier stay in the TLB, tagged with it, to be
+     * used again when it next runs. Those of a process without one are copied
+     * back to the page table and dropped.
      */
     public void saveState() {
 	super.saveState();
+
+	if (Machine.processor().hasTLB()) {
+	    if (asid == 0)
+		flushTLB();
+	    tlbProcess = null;
+	}
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. With a TLB, the processor is switched
+     * to this process's address space identifier, and any translation not
+     * still in the TLB is loaded on demand by <tt>handleTLBMiss()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	if (Machine.processor().hasTLB()) {
+	    Machine.processor().setASID(asid);
+	    tlbProcess = this;
+	}
+	else {
+	    super.restoreState();
+	}
     }
 
     /**
      * Initializes page tables for this process so that the executable can be
-     * demand-paged.
+     * demand-paged. No page is brought into physical memory until it is first
+     * touched, so a program may have more pages than physical memory does.
      *
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	copyOnWrite = new boolean[numPages];
+	swapSlot = new int[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+	    swapSlot[vpn] = -1;
+	}
+
+	asid = VMKernel.allocateASID(this);
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	VMKernel.pagingLock.acquire();
+
+	if (inTLB())
+	    flushTLB();
+	VMKernel.freeASID(asid);
+	asid = 0;
+
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn] != null && pageTable[vpn].valid)
+		VMKernel.invertedPageTable.unmap(pageTable[vpn].ppn, this);
+	    if (swapSlot[vpn] != -1)
+		VMKernel.swapSpace.free(swapSlot[vpn]);
+	}
+
 	super.unloadSections();
+
+	VMKernel.pagingLock.release();
     }    
 
+    /**
+     * Bring a page into physical memory when the kernel touches it on behalf
+     * of this process.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is now in physical memory.
+     */
+    protected boolean pageIn(int vpn) {
+	VMKernel.pagingLock.acquire();
+	boolean paged = pageInLocked(vpn);
+	VMKernel.pagingLock.release();
+
+	return paged;
+    }
+
+    /**
+     * Bring a page into physical memory, reclaiming another page if none is
+     * free. A page that has been written to swap is read back from its slot,
+     * into a page of its own. Otherwise, a page of a COFF section is shared
+     * with other processes running the same executable, as by
+     * <tt>UserProcess.loadSections()</tt>, and read from the executable if
+     * none of them has it. Any other page (the stack and the arguments) is
+     * given a free page of its own, filled with zeros. A page is only
+     * reclaimed without being written to swap if it is clean, so its source
+     * still holds its contents.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is now in physical memory.
+     */
+    private boolean pageInLocked(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	if (entry.valid)
+	    return true;
+
+	boolean swapped = (swapSlot[vpn] != -1);
+
+	CoffSection section = null;
+	for (int s=0; s<coff.getNumSections() && !swapped; s++) {
+	    CoffSection candidate = coff.getSection(s);
+	    if (vpn >= candidate.getFirstVPN() &&
+		vpn < candidate.getFirstVPN() + candidate.getLength()) {
+		section = candidate;
+		break;
+	    }
+	}
+
+	int ppn;
+	while (true) {
+	    if (section != null)
+		ppn = UserKernel.frameTable.share(executableName, section,
+						  vpn - section.getFirstVPN());
+	    else
+		ppn = UserKernel.frameTable.allocate();
+
+	    if (ppn != -1)
+		break;
+
+	    if (!VMKernel.reclaimPage()) {
+		Lib.debug(dbgVM, "\tno physical memory for page " + vpn);
+		return false;
+	    }
+	}
+
+	if (swapped) {
+	    VMKernel.swapSpace.readPage(swapSlot[vpn], ppn);
+	    VMKernel.numSwapReads++;
+	    entry.readOnly = false;
+	}
+	else if (section != null) {
+	    entry.readOnly = true;
+	    copyOnWrite[vpn] = !section.isReadOnly();
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    entry.readOnly = false;
+	}
+
+	Lib.debug(dbgVM, "\tpage " + vpn + " -> frame " + ppn +
+		  (swapped ? " (swap slot " + swapSlot[vpn] + ")" :
+		   section != null ? " (" + section.getName() + ")" : ""));
+
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+
+	VMKernel.invertedPageTable.map(ppn, this, vpn);
+	VMKernel.replacementPolicy.pageMapped(ppn);
+	VMKernel.numPageFaults++;
+
+	return true;
+    }
+
+    /**
+     * Test whether a page could be removed from physical memory now without
+     * losing its contents: it is clean, or it already has a swap slot, or a
+     * slot is free.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page can be paged out.
+     */
+    boolean canPageOut(int vpn) {
+	return !pageTable[vpn].dirty || swapSlot[vpn] != -1 ||
+	    (VMKernel.swapSpace != null &&
+	     VMKernel.swapSpace.getNumFreeSlots() > 0);
+    }
+
+    /**
+     * Remove a page from physical memory after it has been reclaimed, first
+     * writing it to swap if it is dirty. Called by
+     * <tt>VMKernel.reclaimPage()</tt>, which has already removed this process
+     * from the page's owners.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    void evictPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	if (inTLB())
+	    invalidateTLBEntry(vpn);
+
+	if (entry.dirty) {
+	    if (swapSlot[vpn] == -1)
+		swapSlot[vpn] = VMKernel.swapSpace.allocate();
+	    Lib.assertTrue(swapSlot[vpn] != -1);
+
+	    VMKernel.swapSpace.writePage(swapSlot[vpn], entry.ppn);
+	    VMKernel.numSwapWrites++;
+	    entry.dirty = false;
+	}
+
+	entry.valid = false;
+	UserKernel.frameTable.release(entry.ppn);
+    }
+
+    /**
+     * Return this process's page table entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getPageTableEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Give a copy-on-write page a private copy, reclaiming another page for
+     * the copy if none is free, and drop the stale read-only translation from
+     * the TLB if it holds one.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is now writable.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	if (copyOnWrite == null || vpn < 0 || vpn >= copyOnWrite.length ||
+	    !copyOnWrite[vpn])
+	    return false;
+
+	VMKernel.pagingLock.acquire();
+
+	// the page may have been reclaimed while waiting for the lock
+	TranslationEntry entry = pageTable[vpn];
+	if (!pageInLocked(vpn) || !copyOnWrite[vpn]) {
+	    VMKernel.pagingLock.release();
+	    return entry.valid && !entry.readOnly;
+	}
+
+	int sharedPPN = entry.ppn;
+	VMKernel.invertedPageTable.pin(sharedPPN);
+
+	boolean broken;
+	while (!(broken = super.breakCopyOnWrite(vpn))) {
+	    if (!VMKernel.reclaimPage())
+		break;
+	}
+
+	VMKernel.invertedPageTable.unpin(sharedPPN);
+
+	if (broken && entry.ppn != sharedPPN) {
+	    VMKernel.invertedPageTable.unmap(sharedPPN, this);
+	    VMKernel.invertedPageTable.map(entry.ppn, this, vpn);
+	    VMKernel.replacementPolicy.pageMapped(entry.ppn);
+	}
+
+	if (broken && inTLB())
+	    invalidateTLBEntry(vpn);
+
+	VMKernel.pagingLock.release();
+
+	return broken;
+    }
+
+    /**
+     * Handle a TLB miss on the specified virtual address. Brings the page into
+     * physical memory if it is not there, and then loads its translation into
+     * the TLB, replacing an invalid entry if there is one, or else the
+     * entries in turn.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>true</tt> if the instruction can be retried.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || vpn >= numPages)
+	    return false;
+
+	VMKernel.numTLBMisses++;
+
+	// the lock is only needed to bring the page in; once it is valid,
+	// nothing else can run before its translation is in the TLB
+	while (!pageTable[vpn].valid) {
+	    if (!pageIn(vpn))
+		return false;
+	}
+
+	// the translation can only go in the set its vpn maps to
+	Processor processor = Machine.processor();
+	int associativity = processor.getTLBAssociativity();
+	int first = processor.getTLBSet(vpn) * associativity;
+
+	int victim = -1;
+	for (int i=first; i<first+associativity && victim == -1; i++) {
+	    processor.readTLBEntry(i, tlbEntry);
+	    if (!tlbEntry.valid)
+		victim = i;
+	}
+	if (victim == -1) {
+	    victim = first + nextVictim % associativity;
+	    nextVictim = (nextVictim+1) % associativity;
+	    processor.readTLBEntry(victim, tlbEntry);
+	    syncToOwner(tlbEntry);
+	}
+
+	tlbEntry.set(pageTable[vpn]);
+	tlbEntry.asid = asid;
+	processor.writeTLBEntry(victim, tlbEntry);
+	return true;
+    }
+
+    /**
+     * Handle a page fault on the specified virtual address, when the processor
+     * walks the page table itself instead of using a TLB.
+     *
+     * @param	vaddr	the virtual address that faulted.
+     * @return	<tt>true</tt> if the instruction can be retried.
+     */
+    private boolean handlePageFault(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || vpn >= numPages)
+	    return false;
+
+	return pageIn(vpn);
+    }
+
+    /**
+     * Copy the used and dirty bits that the processor has set in the TLB
+     * back to the page tables of the processes it holds translations for,
+     * and clear them in the TLB, so that the replacement policy sees every
+     * use.
+     */
+    static void syncTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    processor.readTLBEntry(i, tlbEntry);
+	    if (tlbEntry.valid && (tlbEntry.used || tlbEntry.dirty)) {
+		syncToOwner(tlbEntry);
+		tlbEntry.used = false;
+		tlbEntry.dirty = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits that the processor set in a TLB entry back
+     * to the page table of the process the entry belongs to: the one given
+     * its address space identifier, or, for identifier 0, the process whose
+     * untagged translations are in the TLB.
+     */
+    private static void syncToOwner(TranslationEntry tlbEntry) {
+	if (!tlbEntry.valid)
+	    return;
+
+	VMProcess owner = (tlbEntry.asid == 0) ? tlbProcess :
+	    VMKernel.getASIDOwner(tlbEntry.asid);
+	Lib.assertTrue(owner != null);
+
+	TranslationEntry entry = owner.pageTable[tlbEntry.vpn];
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+    }
+
+    /**
+     * Test whether the TLB may hold translations for this process: it has
+     * an address space identifier of its own, or its untagged translations
+     * are the ones in the TLB.
+     */
+    private boolean inTLB() {
+	return asid != 0 || tlbProcess == this;
+    }
+
+    private void invalidateTLBEntry(int vpn) {
+	Processor processor = Machine.processor();
+	int associativity = processor.getTLBAssociativity();
+	int first = processor.getTLBSet(vpn) * associativity;
+
+	for (int i=first; i<first+associativity; i++) {
+	    processor.readTLBEntry(i, tlbEntry);
+	    if (tlbEntry.valid && tlbEntry.vpn == vpn && tlbEntry.asid == asid) {
+		syncToOwner(tlbEntry);
+		tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Drop every translation for this process from the TLB, copying its used
+     * and dirty bits back to the page table first.
+     */
+    private void flushTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    processor.readTLBEntry(i, tlbEntry);
+	    if (tlbEntry.valid && tlbEntry.asid == asid) {
+		syncToOwner(tlbEntry);
+		tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
     /**
      * Handle a user exception. Called by
      * <tt>UserKernel.exceptionHandler()</tt>. The
@@ -59,13 +443,48 @@ public class VMProcess extends UserProcess {
      */
     public void handleException(int cause) {
 	Processor processor = Machine.processor();
+	int vaddr = processor.readRegister(Processor.regBadVAddr);
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (handleTLBMiss(vaddr))
+		break;
+	    super.handleException(cause);
+	    break;
+
+	case Processor.exceptionPageFault:
+	    if (handlePageFault(vaddr))
+		break;
+	    super.handleException(cause);
+	    break;
+	    
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
+
+    /**
+     * The swap slot holding each page, or -1 if the page has never been
+     * written to swap.
+     */
+    private int[] swapSlot;
+
+    /**
+     * The address space identifier tagging this process's translations in
+     * the TLB, or 0 if it has none of its own.
+     */
+    private int asid = 0;
+
+    /**
+     * The process running with the TLB, if any. Translations tagged 0 are
+     * this process's.
+     */
+    private static VMProcess tlbProcess = null;
+    /** The entry of a full TLB set to replace next. */
+    private static int nextVictim = 0;
+    /** Scratch space for reading TLB entries without allocating. */
+    private static TranslationEntry tlbEntry = new TranslationEntry();
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
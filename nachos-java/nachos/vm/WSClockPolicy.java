@@ -0,0 +1,73 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock replacement policy. A hand sweeps physical memory as in
+ * <tt>ClockPolicy</tt>, but a page the hand passes with its used bit set
+ * also has its time of last use set to the current time. A page that has not
+ * been used is only reclaimed at once if it has gone unused for longer than
+ * the working set window, so that pages still in some process's working set
+ * are kept. Clean pages are preferred, since they can be reclaimed without
+ * writing them to swap: a page outside the window that is dirty is passed
+ * over unless no clean one is found. If no page is that old, the page that
+ * has gone unused longest is reclaimed.
+ *
+ * <p>
+ * The window, in ticks, is specified by the <tt>nachos.conf</tt> key
+ * <tt>WSClockPolicy.window</tt>, and defaults to 10 timer interrupts.
+ * Time is the machine's total ticks, not the owners' own running time, so
+ * the window is a rough one when several processes share the processor.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+	window = Config.getInteger("WSClockPolicy.window", 10*Stats.TimerTicks);
+	Lib.assertTrue(window >= 0);
+
+	lastUsed = new long[Machine.processor().getNumPhysPages()];
+    }
+
+    public void pageMapped(int ppn) {
+	lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    public int findVictim(InvertedPageTable table) {
+	int numPhysPages = table.getNumPhysPages();
+	long now = Machine.timer().getTime();
+	int oldest = -1, oldestDirty = -1;
+
+	for (int i=0; i<2*numPhysPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPhysPages;
+
+	    if (!table.canReclaim(ppn))
+		continue;
+
+	    if (table.isUsed(ppn)) {
+		table.clearUsed(ppn);
+		lastUsed[ppn] = now;
+	    }
+	    else if (now - lastUsed[ppn] > window) {
+		if (!table.isDirty(ppn))
+		    return ppn;
+		if (oldestDirty == -1 || lastUsed[ppn] < lastUsed[oldestDirty])
+		    oldestDirty = ppn;
+	    }
+	    else if (oldest == -1 || lastUsed[ppn] < lastUsed[oldest]) {
+		oldest = ppn;
+	    }
+	}
+
+	return (oldestDirty != -1) ? oldestDirty : oldest;
+    }
+
+    private int window;
+    private long[] lastUsed;
+    private int hand = 0;
+}